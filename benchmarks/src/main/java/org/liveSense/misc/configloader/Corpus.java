@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Generates the configurations the benchmarks run on. The content only
+ * depends on the size, every run sees the same configurations.
+ * <ul>
+ * <li><code>small</code>: 8 scalar properties, the usual hand written
+ * configuration.
+ * <li><code>medium</code>: 200 properties of every type, with arrays and
+ * vectors.
+ * <li><code>huge</code>: 10000 properties with long arrays.
+ * </ul>
+ * A fifth of the String values hold <tt>${...}</tt> macros referring to a
+ * system property or to another property of the configuration.
+ */
+final class Corpus {
+
+    static final String SMALL = "small";
+    static final String MEDIUM = "medium";
+    static final String HUGE = "huge";
+
+    private Corpus() {
+    }
+
+    /**
+     * Creates the configuration of a size.
+     *
+     * @param size <code>small</code>, <code>medium</code> or
+     *            <code>huge</code>.
+     */
+    static Hashtable create(String size) {
+        if (SMALL.equals(size)) {
+            return create(8, 0, 1);
+        } else if (MEDIUM.equals(size)) {
+            return create(200, 16, 2);
+        } else if (HUGE.equals(size)) {
+            return create(10000, 128, 3);
+        }
+        throw new IllegalArgumentException("Unknown corpus size " + size);
+    }
+
+    private static Hashtable create(int count, int arrayLength, long seed) {
+        Random random = new Random(seed);
+        Hashtable props = new Hashtable(count * 2);
+        // the target of the macros referring to the configuration
+        props.put("prop0", "base");
+        for (int i = 1; i < count; i++) {
+            String key = "prop" + i;
+            int type = (arrayLength == 0) ? random.nextInt(4) : random.nextInt(8);
+            switch (type) {
+            case 0:
+                props.put(key, createString(random, i));
+                break;
+            case 1:
+                props.put(key, new Integer(random.nextInt()));
+                break;
+            case 2:
+                props.put(key, new Long(random.nextLong()));
+                break;
+            case 3:
+                props.put(key, Boolean.valueOf(random.nextBoolean()));
+                break;
+            case 4:
+                props.put(key, new Double(random.nextDouble()));
+                break;
+            case 5: {
+                String[] values = new String[1 + random.nextInt(arrayLength)];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = "value " + random.nextInt(1000);
+                }
+                props.put(key, values);
+                break;
+            }
+            case 6: {
+                int[] values = new int[1 + random.nextInt(arrayLength)];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = random.nextInt();
+                }
+                props.put(key, values);
+                break;
+            }
+            default: {
+                Vector values = new Vector();
+                int length = 1 + random.nextInt(arrayLength);
+                for (int j = 0; j < length; j++) {
+                    values.add(new Long(random.nextLong()));
+                }
+                props.put(key, values);
+                break;
+            }
+            }
+        }
+        return props;
+    }
+
+    private static String createString(Random random, int index) {
+        switch (random.nextInt(10)) {
+        case 0:
+            return "${java.io.tmpdir}/cache/" + index;
+        case 1:
+            return "prefix ${prop0} suffix";
+        default:
+            StringBuffer buf = new StringBuffer("value ");
+            int length = random.nextInt(40);
+            for (int i = 0; i < length; i++) {
+                buf.append((char) ('a' + random.nextInt(26)));
+            }
+            if (random.nextInt(20) == 0) {
+                buf.append(" \"quoted\" \u00e9\u00e8");
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * @return The configuration in the Felix <code>.config</code> format.
+     */
+    static byte[] toConfig(Dictionary props) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConfigurationHandler.write(out, props);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return The String values of the configuration.
+     */
+    static Hashtable strings(Dictionary props) {
+        Hashtable strings = new Hashtable();
+        for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
+            Object key = e.nextElement();
+            Object value = props.get(key);
+            if (value instanceof String) {
+                strings.put(key, value);
+            }
+        }
+        return strings;
+    }
+
+    static Hashtable copy(Dictionary props) {
+        Hashtable copy = new Hashtable(props.size() * 2);
+        for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
+            Object key = e.nextElement();
+            copy.put(key, props.get(key));
+        }
+        return copy;
+    }
+}
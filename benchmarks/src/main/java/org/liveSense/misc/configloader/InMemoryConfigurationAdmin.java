@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+
+/**
+ * A <code>ConfigurationAdmin</code> keeping the configurations in a map,
+ * so the benchmarks measure the loader and not the persistence of a real
+ * implementation.
+ * <p>
+ * The services are dynamic proxies, they do not depend on the version of
+ * the interfaces on the class path. Only what the loader uses is
+ * implemented: the filters of <code>listConfigurations</code> are single
+ * <code>(name=value)</code> comparisons.
+ */
+final class InMemoryConfigurationAdmin implements InvocationHandler {
+
+    /** pid to Config */
+    private final Map configurations = new LinkedHashMap();
+
+    private int factoryCount;
+
+    private final ConfigurationAdmin service = (ConfigurationAdmin) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class[] { ConfigurationAdmin.class }, this);
+
+    ConfigurationAdmin getService() {
+        return service;
+    }
+
+    void clear() {
+        configurations.clear();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("getConfiguration".equals(name)) {
+            String pid = (String) args[0];
+            Config config = (Config) configurations.get(pid);
+            if (config == null) {
+                config = new Config(pid, null);
+                configurations.put(pid, config);
+            }
+            return config.proxy;
+        } else if ("createFactoryConfiguration".equals(name)) {
+            String factoryPid = (String) args[0];
+            Config config = new Config(factoryPid + "." + (++factoryCount), factoryPid);
+            configurations.put(config.pid, config);
+            return config.proxy;
+        } else if ("listConfigurations".equals(name)) {
+            return listConfigurations((String) args[0]);
+        }
+        return defaultValue(proxy, method, args);
+    }
+
+    private Configuration[] listConfigurations(String filter) {
+        String key = null;
+        String value = null;
+        if (filter != null) {
+            int eq = filter.indexOf('=');
+            key = filter.substring(1, eq);
+            value = filter.substring(eq + 1, filter.length() - 1);
+        }
+        List result = new ArrayList();
+        for (Iterator ci = configurations.values().iterator(); ci.hasNext(); ) {
+            Config config = (Config) ci.next();
+            if (config.properties != null && (key == null || value.equals(config.properties.get(key)))) {
+                result.add(config.proxy);
+            }
+        }
+        return result.isEmpty() ? null : (Configuration[]) result.toArray(new Configuration[result.size()]);
+    }
+
+    /**
+     * Creates a <code>BundleContext</code> providing just enough to start
+     * the loader: this <code>ConfigurationAdmin</code> as the only service,
+     * no other bundles, no framework properties and no data area. Services
+     * registered by the loader and listeners are ignored.
+     */
+    BundleContext createBundleContext() {
+        final ServiceReference reference = (ServiceReference) Proxy.newProxyInstance(
+                InMemoryConfigurationAdmin.class.getClassLoader(), new Class[] { ServiceReference.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        return defaultValue(proxy, method, args);
+                    }
+                });
+        final Filter filter = (Filter) Proxy.newProxyInstance(InMemoryConfigurationAdmin.class.getClassLoader(),
+                new Class[] { Filter.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        return defaultValue(proxy, method, args);
+                    }
+                });
+        final Bundle bundle = (Bundle) Proxy.newProxyInstance(InMemoryConfigurationAdmin.class.getClassLoader(),
+                new Class[] { Bundle.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("getSymbolicName".equals(method.getName())) {
+                            return "org.liveSense.misc.configurationLoader.benchmarks";
+                        }
+                        return defaultValue(proxy, method, args);
+                    }
+                });
+        return (BundleContext) Proxy.newProxyInstance(InMemoryConfigurationAdmin.class.getClassLoader(),
+                new Class[] { BundleContext.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if ("getBundle".equals(name) && args == null) {
+                            return bundle;
+                        } else if ("getBundles".equals(name)) {
+                            return new Bundle[0];
+                        } else if ("createFilter".equals(name)) {
+                            return filter;
+                        } else if ("getServiceReferences".equals(name)
+                                && ConfigurationAdmin.class.getName().equals(args[0])) {
+                            return new ServiceReference[] { reference };
+                        } else if ("getServiceReference".equals(name)
+                                && ConfigurationAdmin.class.getName().equals(args[0])) {
+                            return reference;
+                        } else if ("getService".equals(name) && args[0] == reference) {
+                            return service;
+                        }
+                        return defaultValue(proxy, method, args);
+                    }
+                });
+    }
+
+    /**
+     * Implements the <code>Object</code> methods of a proxy and returns the
+     * default value of the return type for everything else.
+     */
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        Class type = method.getReturnType();
+        if ("equals".equals(name) && args != null && args.length == 1) {
+            return Boolean.valueOf(proxy == args[0]);
+        } else if ("hashCode".equals(name) && args == null) {
+            return new Integer(System.identityHashCode(proxy));
+        } else if ("toString".equals(name) && args == null) {
+            return "InMemory" + method.getDeclaringClass().getSimpleName();
+        } else if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return new Integer(0);
+        } else if (type == Long.TYPE) {
+            return new Long(0);
+        }
+        return null;
+    }
+
+    private final class Config implements InvocationHandler {
+
+        private final String pid;
+        private final String factoryPid;
+        private final Configuration proxy;
+        private Hashtable properties;
+        private String location;
+
+        Config(String pid, String factoryPid) {
+            this.pid = pid;
+            this.factoryPid = factoryPid;
+            this.proxy = (Configuration) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class[] { Configuration.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("getPid".equals(name)) {
+                return pid;
+            } else if ("getFactoryPid".equals(name)) {
+                return factoryPid;
+            } else if ("getProperties".equals(name)) {
+                return properties == null ? null : Corpus.copy(properties);
+            } else if ("update".equals(name) && args != null) {
+                properties = Corpus.copy((Dictionary) args[0]);
+                properties.put("service.pid", pid);
+                if (factoryPid != null) {
+                    properties.put("service.factoryPid", factoryPid);
+                }
+                return null;
+            } else if ("getBundleLocation".equals(name)) {
+                return location;
+            } else if ("setBundleLocation".equals(name)) {
+                location = (String) args[0];
+                return null;
+            } else if ("delete".equals(name)) {
+                configurations.remove(pid);
+                return null;
+            }
+            return defaultValue(proxy, method, args);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing the <code>Felix-Initial-Configuration</code> header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManifestHeaderBenchmark {
+
+    @Param({ Corpus.SMALL, Corpus.MEDIUM, Corpus.HUGE })
+    public String size;
+
+    private String header;
+
+    @Setup
+    public void setUp() {
+        int paths;
+        if (Corpus.SMALL.equals(size)) {
+            paths = 1;
+        } else if (Corpus.MEDIUM.equals(size)) {
+            paths = 10;
+        } else {
+            paths = 200;
+        }
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < paths; i++) {
+            if (i > 0) {
+                buf.append(", ");
+            }
+            buf.append("config/module").append(i);
+            if (i % 3 == 1) {
+                buf.append(";recursive:=true");
+            } else if (i % 3 == 2) {
+                buf.append(";pattern:=\"*.cfg\";overwrite:=false");
+            }
+        }
+        header = buf.toString();
+    }
+
+    @Benchmark
+    public ManifestHeader parse() {
+        return ManifestHeader.parse(header);
+    }
+}
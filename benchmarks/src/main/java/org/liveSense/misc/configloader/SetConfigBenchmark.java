@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.BundleContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The whole pipeline of loading a configuration file: reading the file,
+ * parsing, resolving the macros, finding the configuration and updating it,
+ * against an {@link InMemoryConfigurationAdmin}. The loader is started and
+ * driven through its public methods only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetConfigBenchmark {
+
+    @Param({ Corpus.SMALL, Corpus.MEDIUM, Corpus.HUGE })
+    public String size;
+
+    private File dir;
+    private URL original;
+    private URL modified;
+    private InMemoryConfigurationAdmin admin;
+    private BundleContext context;
+    private ConfigurationLoader loader;
+    private boolean flip;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = File.createTempFile("configloader", ".bench");
+        dir.delete();
+        Hashtable props = Corpus.create(size);
+        original = write(new File(dir, "original"), props);
+        props.put("modified", Boolean.TRUE);
+        modified = write(new File(dir, "modified"), props);
+
+        admin = new InMemoryConfigurationAdmin();
+        context = admin.createBundleContext();
+        loader = new ConfigurationLoader();
+        loader.start(context);
+        loader.update(original);
+    }
+
+    /** Both files have the same name, so they are the same configuration. */
+    private static URL write(File parent, Hashtable props) throws IOException {
+        parent.mkdirs();
+        File file = new File(parent, "org.liveSense.benchmark.config");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(Corpus.toConfig(props));
+        } finally {
+            out.close();
+        }
+        return file.toURI().toURL();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        loader.stop(context);
+        new File(new File(dir, "original"), "org.liveSense.benchmark.config").delete();
+        new File(new File(dir, "modified"), "org.liveSense.benchmark.config").delete();
+        new File(dir, "original").delete();
+        new File(dir, "modified").delete();
+        dir.delete();
+    }
+
+    /** The configuration exists with the same content, nothing is written. */
+    @Benchmark
+    public void unchanged() throws Exception {
+        loader.update(original);
+    }
+
+    /** The configuration exists with another content and is updated. */
+    @Benchmark
+    public void changed() throws Exception {
+        flip = !flip;
+        loader.update(flip ? modified : original);
+    }
+
+    /** The configuration does not exist and is created. */
+    @Benchmark
+    public void created() throws Exception {
+        admin.clear();
+        loader.update(original);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Resolving the <tt>${...}</tt> macros of a configuration. The benchmarks
+ * modifying the configuration work on a copy, the copy is part of the
+ * measured time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubstitutionBenchmark {
+
+    @Param({ Corpus.SMALL, Corpus.MEDIUM, Corpus.HUGE })
+    public String size;
+
+    private Hashtable props;
+    private Hashtable strings;
+    private Properties system;
+
+    @Setup
+    public void setUp() {
+        props = Corpus.create(size);
+        strings = Corpus.strings(props);
+        system = Util.systemProperties();
+    }
+
+    /** Util.substVars on every String value. */
+    @Benchmark
+    public void substVars(Blackhole blackhole) {
+        for (Enumeration e = strings.keys(); e.hasMoreElements(); ) {
+            String key = (String) e.nextElement();
+            blackhole.consume(Util.substVars((String) strings.get(key), key, new HashMap(), strings));
+        }
+    }
+
+    @Benchmark
+    public Hashtable performSubstitution() {
+        Hashtable copy = Corpus.copy(props);
+        Util.performSubstitution(copy);
+        return copy;
+    }
+
+    /** The single pass the loader uses. */
+    @Benchmark
+    public Set resolveMacros() {
+        return Util.resolveMacros(Corpus.copy(props), system);
+    }
+
+    /** The cost of the copy the other benchmarks include. */
+    @Benchmark
+    public Hashtable copy() {
+        return Corpus.copy(props);
+    }
+}
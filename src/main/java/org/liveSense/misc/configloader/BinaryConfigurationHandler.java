@@ -0,0 +1,593 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes configurations in a compact binary format, the binary
+ * counterpart of {@link ConfigurationHandler}. It holds the same values: the
+ * simple types, arrays of simple and primitive types and collections.
+ * <p>
+ * The format is:
+ *
+ * <pre>
+ * file    = magic version flags [ keys ] count entry*
+ * magic   = 0x89 'C' 'F' 'G'
+ * keys    = count string*                  (if FLAG_KEY_DICTIONARY)
+ * entry   = ( varint | string ) value      (key index or key)
+ * value   = tag payload
+ * </pre>
+ *
+ * Numbers are big endian, counts and string lengths are unsigned varints,
+ * strings are UTF-8. The tag holds the element type in its low bits and the
+ * shape in its high bits. Primitive arrays are stored as one block read in
+ * bulk, the elements of object arrays and collections carry their own tag,
+ * so they may be <code>null</code>.
+ * <p>
+ * The magic starts with a byte which is neither valid at the start of an
+ * UTF-8 text nor printable, so {@link #isBinary(InputStream)} tells the
+ * binary format apart from the textual ones.
+ */
+public class BinaryConfigurationHandler {
+
+    private static final byte[] MAGIC = { (byte) 0x89, 'C', 'F', 'G' };
+
+    private static final int VERSION = 1;
+
+    /** The keys are stored once in a table and referred to by index. */
+    private static final int FLAG_KEY_DICTIONARY = 0x01;
+
+    // element types
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_INTEGER = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_FLOAT = 4;
+    private static final int TYPE_DOUBLE = 5;
+    private static final int TYPE_BYTE = 6;
+    private static final int TYPE_SHORT = 7;
+    private static final int TYPE_CHARACTER = 8;
+    private static final int TYPE_BOOLEAN = 9;
+
+    private static final int TYPE_MASK = 0x0f;
+
+    // shapes
+    private static final int SCALAR = 0x00;
+    private static final int PRIMITIVE_ARRAY = 0x10;
+    private static final int OBJECT_ARRAY = 0x20;
+    private static final int COLLECTION = 0x30;
+
+    private static final int SHAPE_MASK = 0x30;
+
+    /** The types by wrapper and primitive class. */
+    private static final Map TYPES = new HashMap();
+
+    /** The wrapper classes by type. */
+    private static final Class[] WRAPPERS = new Class[TYPE_BOOLEAN + 1];
+
+    static {
+        register(TYPE_STRING, String.class, null);
+        register(TYPE_INTEGER, Integer.class, Integer.TYPE);
+        register(TYPE_LONG, Long.class, Long.TYPE);
+        register(TYPE_FLOAT, Float.class, Float.TYPE);
+        register(TYPE_DOUBLE, Double.class, Double.TYPE);
+        register(TYPE_BYTE, Byte.class, Byte.TYPE);
+        register(TYPE_SHORT, Short.class, Short.TYPE);
+        register(TYPE_CHARACTER, Character.class, Character.TYPE);
+        register(TYPE_BOOLEAN, Boolean.class, Boolean.TYPE);
+    }
+
+    private static void register(int type, Class wrapper, Class primitive) {
+        Integer code = new Integer(type);
+        WRAPPERS[type] = wrapper;
+        TYPES.put(wrapper, code);
+        if (primitive != null) {
+            TYPES.put(primitive, code);
+        }
+    }
+
+    // private constructor, this class is not to be instantiated from the
+    // outside
+    private BinaryConfigurationHandler() {
+    }
+
+    /**
+     * Checks whether a stream holds a binary configuration. The stream must
+     * support mark, it is reset to where it was.
+     *
+     * @param in The stream.
+     * @return <code>true</code> if the stream starts with the binary magic.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static boolean isBinary(InputStream in) throws IOException {
+        in.mark(MAGIC.length);
+        try {
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (in.read() != (MAGIC[i] & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Writes the configuration data from the <code>Dictionary</code> to the
+     * given <code>OutputStream</code>, with the keys inline. The keys of a
+     * configuration are unique, a key table would only add the indexes.
+     *
+     * @param out The stream, it is not closed.
+     * @param properties The <code>Dictionary</code> to write.
+     * @throws IOException If an error occurrs writing to the output stream.
+     */
+    public static void write(OutputStream out, Dictionary properties) throws IOException {
+        write(out, properties, false);
+    }
+
+    /**
+     * Writes the configuration data from the <code>Dictionary</code> to the
+     * given <code>OutputStream</code>. The keys are written sorted, so equal
+     * dictionaries produce the same bytes.
+     *
+     * @param out The stream, it is not closed.
+     * @param properties The <code>Dictionary</code> to write.
+     * @param keyDictionary Whether to store the keys in a table up front.
+     * @throws IOException If an error occurrs writing to the output stream,
+     *             or a value of an unsupported type is found.
+     */
+    public static void write(OutputStream out, Dictionary properties, boolean keyDictionary)
+            throws IOException {
+        List keys = Collections.list(properties.keys());
+        Collections.sort(keys);
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte(keyDictionary ? FLAG_KEY_DICTIONARY : 0);
+
+        if (keyDictionary) {
+            writeVarint(data, keys.size());
+            for (Iterator ki = keys.iterator(); ki.hasNext(); ) {
+                writeString(data, (String) ki.next());
+            }
+        }
+
+        writeVarint(data, keys.size());
+        int index = 0;
+        for (Iterator ki = keys.iterator(); ki.hasNext(); index++) {
+            String key = (String) ki.next();
+            if (keyDictionary) {
+                writeVarint(data, index);
+            } else {
+                writeString(data, key);
+            }
+            writeValue(data, properties.get(key));
+        }
+        data.flush();
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        Class clazz = value.getClass();
+        if (clazz.isArray()) {
+            Class component = clazz.getComponentType();
+            int type = getType(component);
+            int length = Array.getLength(value);
+            if (component.isPrimitive()) {
+                out.writeByte(PRIMITIVE_ARRAY | type);
+                writeVarint(out, length);
+                writePrimitives(out, value, type, length);
+            } else {
+                Object[] array = (Object[]) value;
+                out.writeByte(OBJECT_ARRAY | type);
+                writeVarint(out, length);
+                for (int i = 0; i < length; i++) {
+                    writeElement(out, array[i]);
+                }
+            }
+        } else if (value instanceof Collection) {
+            Collection collection = (Collection) value;
+            out.writeByte(COLLECTION);
+            writeVarint(out, collection.size());
+            for (Iterator ci = collection.iterator(); ci.hasNext(); ) {
+                writeElement(out, ci.next());
+            }
+        } else {
+            int type = getType(clazz);
+            out.writeByte(SCALAR | type);
+            writeSimple(out, value, type);
+        }
+    }
+
+    private static void writeElement(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else {
+            int type = getType(value.getClass());
+            out.writeByte(type);
+            writeSimple(out, value, type);
+        }
+    }
+
+    private static int getType(Class clazz) throws IOException {
+        Integer type = (Integer) TYPES.get(clazz);
+        if (type == null) {
+            throw new IOException("Unsupported type " + clazz.getName());
+        }
+        return type.intValue();
+    }
+
+    private static void writeSimple(DataOutputStream out, Object value, int type) throws IOException {
+        switch (type) {
+        case TYPE_STRING:
+            writeString(out, (String) value);
+            break;
+        case TYPE_INTEGER:
+            out.writeInt(((Integer) value).intValue());
+            break;
+        case TYPE_LONG:
+            out.writeLong(((Long) value).longValue());
+            break;
+        case TYPE_FLOAT:
+            out.writeInt(Float.floatToRawIntBits(((Float) value).floatValue()));
+            break;
+        case TYPE_DOUBLE:
+            out.writeLong(Double.doubleToRawLongBits(((Double) value).doubleValue()));
+            break;
+        case TYPE_BYTE:
+            out.writeByte(((Byte) value).byteValue());
+            break;
+        case TYPE_SHORT:
+            out.writeShort(((Short) value).shortValue());
+            break;
+        case TYPE_CHARACTER:
+            out.writeChar(((Character) value).charValue());
+            break;
+        default:
+            out.writeBoolean(((Boolean) value).booleanValue());
+        }
+    }
+
+    private static void writePrimitives(DataOutputStream out, Object array, int type, int length)
+            throws IOException {
+        switch (type) {
+        case TYPE_BYTE:
+            out.write((byte[]) array);
+            return;
+        case TYPE_BOOLEAN:
+            boolean[] booleans = (boolean[]) array;
+            for (int i = 0; i < length; i++) {
+                out.writeBoolean(booleans[i]);
+            }
+            return;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(length * getSize(type));
+        switch (type) {
+        case TYPE_INTEGER:
+            buf.asIntBuffer().put((int[]) array);
+            break;
+        case TYPE_LONG:
+            buf.asLongBuffer().put((long[]) array);
+            break;
+        case TYPE_FLOAT:
+            // raw bits, the same NaN is read back
+            float[] floats = (float[]) array;
+            for (int i = 0; i < length; i++) {
+                buf.putInt(Float.floatToRawIntBits(floats[i]));
+            }
+            break;
+        case TYPE_DOUBLE:
+            double[] doubles = (double[]) array;
+            for (int i = 0; i < length; i++) {
+                buf.putLong(Double.doubleToRawLongBits(doubles[i]));
+            }
+            break;
+        case TYPE_SHORT:
+            buf.asShortBuffer().put((short[]) array);
+            break;
+        default:
+            buf.asCharBuffer().put((char[]) array);
+        }
+        out.write(buf.array());
+    }
+
+    private static int getSize(int type) {
+        switch (type) {
+        case TYPE_LONG:
+        case TYPE_DOUBLE:
+            return 8;
+        case TYPE_INTEGER:
+        case TYPE_FLOAT:
+            return 4;
+        case TYPE_SHORT:
+        case TYPE_CHARACTER:
+            return 2;
+        default:
+            return 1;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads configuration data from the given <code>InputStream</code> and
+     * returns a new <code>Dictionary</code> object containing the data.
+     *
+     * @param in The stream, it is not closed.
+     * @return A new <code>Dictionary</code> object containing the
+     *         configuration data read from the stream.
+     * @throws IOException If an error occurrs reading from the stream, or the
+     *             stream does not hold a valid binary configuration.
+     */
+    public static Dictionary read(InputStream in) throws IOException {
+        try {
+            return read(new DataInputStream(in));
+        } catch (EOFException eofe) {
+            throw new IOException("Truncated binary configuration");
+        }
+    }
+
+    private static Dictionary read(DataInputStream data) throws IOException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data.readByte() != MAGIC[i]) {
+                throw new IOException("Not a binary configuration");
+            }
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary configuration version " + version);
+        }
+        int flags = data.readUnsignedByte();
+
+        // the counts are not trusted for the capacities, a damaged count runs
+        // into the end of the stream instead of allocating what it claims
+        List keys = null;
+        if ((flags & FLAG_KEY_DICTIONARY) != 0) {
+            int count = readCount(data);
+            keys = new ArrayList(getCapacity(count));
+            for (int i = 0; i < count; i++) {
+                keys.add(readString(data));
+            }
+        }
+
+        int count = readCount(data);
+        Hashtable configuration = new Hashtable(getCapacity(count) * 2);
+        for (int i = 0; i < count; i++) {
+            String key;
+            if (keys != null) {
+                int index = readVarint(data);
+                if (index < 0 || index >= keys.size()) {
+                    throw new IOException("Invalid key index " + index);
+                }
+                key = (String) keys.get(index);
+            } else {
+                key = readString(data);
+            }
+            configuration.put(key, readValue(data));
+        }
+        return configuration;
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        int type = tag & TYPE_MASK;
+        switch (tag & SHAPE_MASK) {
+        case SCALAR:
+            return readSimple(in, checkType(type));
+        case PRIMITIVE_ARRAY:
+            if (checkType(type) == TYPE_STRING) {
+                throw new IOException("Invalid primitive array type " + type);
+            }
+            return readPrimitives(in, type, readCount(in));
+        case OBJECT_ARRAY:
+            List elements = readElements(in, checkType(type));
+            return elements.toArray((Object[]) Array.newInstance(WRAPPERS[type], elements.size()));
+        default:
+            return readElements(in, -1);
+        }
+    }
+
+    private static List readElements(DataInputStream in, int expected) throws IOException {
+        int size = readCount(in);
+        List elements = new ArrayList(getCapacity(size));
+        for (int i = 0; i < size; i++) {
+            elements.add(readElement(in, expected));
+        }
+        return elements;
+    }
+
+    // reads an element of an object array or a collection; the expected
+    // type is -1 if any type is allowed
+    private static Object readElement(DataInputStream in, int expected) throws IOException {
+        int type = in.readUnsignedByte();
+        if (type == TYPE_NULL) {
+            return null;
+        }
+        if (expected >= 0 && type != expected) {
+            throw new IOException("Element of type " + type + " in an array of type " + expected);
+        }
+        return readSimple(in, checkType(type));
+    }
+
+    private static int checkType(int type) throws IOException {
+        if (type < TYPE_STRING || type > TYPE_BOOLEAN) {
+            throw new IOException("Invalid type " + type);
+        }
+        return type;
+    }
+
+    private static Object readSimple(DataInputStream in, int type) throws IOException {
+        switch (type) {
+        case TYPE_STRING:
+            return readString(in);
+        case TYPE_INTEGER:
+            return new Integer(in.readInt());
+        case TYPE_LONG:
+            return new Long(in.readLong());
+        case TYPE_FLOAT:
+            return new Float(Float.intBitsToFloat(in.readInt()));
+        case TYPE_DOUBLE:
+            return new Double(Double.longBitsToDouble(in.readLong()));
+        case TYPE_BYTE:
+            return new Byte(in.readByte());
+        case TYPE_SHORT:
+            return new Short(in.readShort());
+        case TYPE_CHARACTER:
+            return new Character(in.readChar());
+        default:
+            return Boolean.valueOf(in.readBoolean());
+        }
+    }
+
+    private static Object readPrimitives(DataInputStream in, int type, int length) throws IOException {
+        if (type == TYPE_BOOLEAN) {
+            byte[] bytes = readBytes(in, length);
+            boolean[] booleans = new boolean[length];
+            for (int i = 0; i < length; i++) {
+                booleans[i] = bytes[i] != 0;
+            }
+            return booleans;
+        }
+
+        long size = (long) length * getSize(type);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Array too large: " + length);
+        }
+        byte[] bytes = readBytes(in, (int) size);
+        if (type == TYPE_BYTE) {
+            return bytes;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        switch (type) {
+        case TYPE_INTEGER:
+            int[] ints = new int[length];
+            buf.asIntBuffer().get(ints);
+            return ints;
+        case TYPE_LONG:
+            long[] longs = new long[length];
+            buf.asLongBuffer().get(longs);
+            return longs;
+        case TYPE_FLOAT:
+            float[] floats = new float[length];
+            for (int i = 0; i < length; i++) {
+                floats[i] = Float.intBitsToFloat(buf.getInt());
+            }
+            return floats;
+        case TYPE_DOUBLE:
+            double[] doubles = new double[length];
+            for (int i = 0; i < length; i++) {
+                doubles[i] = Double.longBitsToDouble(buf.getLong());
+            }
+            return doubles;
+        case TYPE_SHORT:
+            short[] shorts = new short[length];
+            buf.asShortBuffer().get(shorts);
+            return shorts;
+        default:
+            char[] chars = new char[length];
+            buf.asCharBuffer().get(chars);
+            return chars;
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        // grow with the data actually read, a damaged length does not
+        // allocate more than the stream holds
+        byte[] bytes = new byte[Math.min(length, 8192)];
+        int read = 0;
+        while (read < length) {
+            if (read == bytes.length) {
+                byte[] grown = new byte[(int) Math.min(length, 2L * bytes.length)];
+                System.arraycopy(bytes, 0, grown, 0, read);
+                bytes = grown;
+            }
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in, readCount(in)), "UTF-8");
+    }
+
+    /**
+     * @return The initial capacity of a collection of the given, unverified
+     *         size.
+     */
+    private static int getCapacity(int count) {
+        return Math.min(count, 1024);
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = readVarint(in);
+        if (count < 0) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work triggered by bundle events on a bounded pool of worker
+ * threads instead of the thread delivering the event.
+ * <p>
+ * Every bundle has its own queue: the tasks of one bundle are executed one
+ * after the other in submission order, while different bundles are
+ * processed in parallel. Tasks still waiting in the queue of a bundle can be
+ * cancelled, for example when the bundle stops before its configuration
+ * has been loaded.
+ */
+class BundleEventProcessor {
+
+    private final ServiceMediator services;
+    private final ThreadPoolExecutor executor;
+
+    /** The pending queues by bundle id, guarded by itself. */
+    private final Map queues = new HashMap();
+
+    BundleEventProcessor(ServiceMediator services, int threads) {
+        this.services = services;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue(), new LoaderThreadFactory("worker"));
+    }
+
+    /**
+     * Queues a task for the given bundle. The task is run after all the
+     * tasks queued earlier for the same bundle have finished.
+     *
+     * @param bundleId The id of the bundle the task belongs to.
+     * @param task The work to do.
+     */
+    public void submit(long bundleId, Runnable task) {
+        synchronized (queues) {
+            final Long key = new Long(bundleId);
+            BundleQueue queue = (BundleQueue) queues.get(key);
+            if (queue == null) {
+                queue = new BundleQueue(key);
+                queues.put(key, queue);
+            }
+            queue.tasks.add(task);
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                try {
+                    executor.execute(queue);
+                } catch (RejectedExecutionException ree) {
+                    // shutting down, nothing will pick the queue up anymore
+                    queues.remove(key);
+                    services.warn("Dropping configuration work for bundle {}, the loader is shutting down",
+                            new Long(bundleId));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every task queued for the given bundle which has not been
+     * started yet. A task already running is not interrupted.
+     *
+     * @param bundleId The id of the bundle.
+     * @return The number of tasks cancelled.
+     */
+    public int cancel(long bundleId) {
+        synchronized (queues) {
+            BundleQueue queue = (BundleQueue) queues.get(new Long(bundleId));
+            if (queue == null) {
+                return 0;
+            }
+            int cancelled = queue.tasks.size();
+            queue.tasks.clear();
+            return cancelled;
+        }
+    }
+
+    /**
+     * Stops accepting new work and waits for the running tasks to finish.
+     *
+     * @param wait time in milliseconds to wait for the running tasks.
+     */
+    public void shutdown(long wait) {
+        synchronized (queues) {
+            queues.clear();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(wait, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The tasks of one bundle. At most one worker drains a queue at a time,
+     * which keeps the events of the bundle in order.
+     */
+    private final class BundleQueue implements Runnable {
+
+        private final Long bundleId;
+        private final LinkedList tasks = new LinkedList();
+        private boolean scheduled;
+
+        BundleQueue(Long bundleId) {
+            this.bundleId = bundleId;
+        }
+
+        public void run() {
+            for (;;) {
+                Runnable task;
+                synchronized (queues) {
+                    if (tasks.isEmpty()) {
+                        scheduled = false;
+                        if (queues.get(bundleId) == this) {
+                            queues.remove(bundleId);
+                        }
+                        return;
+                    }
+                    task = (Runnable) tasks.removeFirst();
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    services.error("Problem processing event of bundle " + bundleId, t);
+                }
+            }
+        }
+    }
+}
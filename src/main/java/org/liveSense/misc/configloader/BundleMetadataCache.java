@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Keeps the parsed <code>Felix-Initial-Configuration</code> header of the
+ * bundles, so the manifest is not read and parsed again on every event.
+ * <p>
+ * The header is read unlocalized. The path entries of a bundle are kept
+ * with the last modification time of the bundle they were read from. The
+ * bundles without the header, most of them, are only remembered in a
+ * <code>BitSet</code> by bundle id. The entries of a bundle are dropped when
+ * it is updated or uninstalled.
+ */
+class BundleMetadataCache {
+
+    /** bundle id to Metadata, guarded by this */
+    private final Map entries = new HashMap();
+
+    /** the ids of the bundles without the header, guarded by this */
+    private final BitSet none = new BitSet();
+
+    /**
+     * Returns the path entries of a bundle.
+     *
+     * @param bundle The bundle.
+     * @return An iterator of the {@link PathEntry}s or <code>null</code> if
+     *         the bundle has no initial configuration.
+     */
+    public Iterator getContentPaths(Bundle bundle) {
+        long bundleId = bundle.getBundleId();
+        long lastModified = bundle.getLastModified();
+        synchronized (this) {
+            if (bundleId <= Integer.MAX_VALUE && none.get((int) bundleId)) {
+                return null;
+            }
+            Metadata metadata = (Metadata) entries.get(new Long(bundleId));
+            if (metadata != null && metadata.lastModified == lastModified) {
+                return metadata.paths.iterator();
+            }
+        }
+
+        List paths = PathEntry.parse((String) bundle.getHeaders("").get(PathEntry.CONFIGURATION_HEADER));
+        synchronized (this) {
+            if (paths == null) {
+                if (bundleId <= Integer.MAX_VALUE) {
+                    none.set((int) bundleId);
+                }
+                entries.remove(new Long(bundleId));
+                return null;
+            }
+            entries.put(new Long(bundleId), new Metadata(lastModified, paths));
+        }
+        return paths.iterator();
+    }
+
+    /**
+     * Forgets what is known about a bundle.
+     *
+     * @param bundleId The bundle id.
+     */
+    public synchronized void invalidate(long bundleId) {
+        if (bundleId <= Integer.MAX_VALUE) {
+            none.clear((int) bundleId);
+        }
+        entries.remove(new Long(bundleId));
+    }
+
+    private static final class Metadata {
+
+        private final long lastModified;
+
+        /** the PathEntry list, never modified */
+        private final List paths;
+
+        Metadata(long lastModified, List paths) {
+            this.lastModified = lastModified;
+            this.paths = paths;
+        }
+    }
+}
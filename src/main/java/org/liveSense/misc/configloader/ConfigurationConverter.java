@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Dictionary;
+
+/**
+ * Converts configurations between the textual <code>.config</code> format
+ * of {@link ConfigurationHandler} and the binary format of
+ * {@link BinaryConfigurationHandler}.
+ * <p>
+ * Usage: <code>ConfigurationConverter (-binary | -text) &lt;input&gt;
+ * &lt;output&gt;</code>. The format of the input is detected, the output
+ * is written in the requested one; text is written in canonical form.
+ */
+public class ConfigurationConverter {
+
+    // private constructor, this class is not to be instantiated from the
+    // outside
+    private ConfigurationConverter() {
+    }
+
+    /**
+     * Reads a configuration in either format.
+     *
+     * @param in The stream, it is not closed.
+     * @return The configuration.
+     * @throws IOException If the stream cannot be read or parsed.
+     */
+    public static Dictionary read(InputStream in) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        if (BinaryConfigurationHandler.isBinary(in)) {
+            return BinaryConfigurationHandler.read(in);
+        }
+        return ConfigurationHandler.read(in);
+    }
+
+    /**
+     * Converts a configuration to the binary format.
+     *
+     * @param in The configuration in either format, not closed.
+     * @param out The stream to write to, not closed.
+     * @throws IOException If reading or writing fails.
+     */
+    public static void toBinary(InputStream in, OutputStream out) throws IOException {
+        BinaryConfigurationHandler.write(out, read(in));
+    }
+
+    /**
+     * Converts a configuration to the canonical textual format.
+     *
+     * @param in The configuration in either format, not closed.
+     * @param out The stream to write to, not closed.
+     * @throws IOException If reading or writing fails.
+     */
+    public static void toText(InputStream in, OutputStream out) throws IOException {
+        ConfigurationHandler.write(out, read(in), true);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !("-binary".equals(args[0]) || "-text".equals(args[0]))) {
+            System.err.println("Usage: ConfigurationConverter (-binary | -text) <input> <output>");
+            System.exit(2);
+        }
+
+        InputStream in = new BufferedInputStream(new FileInputStream(args[1]));
+        try {
+            OutputStream out = new FileOutputStream(args[2]);
+            try {
+                if ("-binary".equals(args[0])) {
+                    toBinary(in, out);
+                } else {
+                    toText(in, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -19,19 +19,22 @@
 package org.liveSense.misc.configloader;
 
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PushbackReader;
-import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -39,6 +42,7 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -197,20 +201,67 @@ public class ConfigurationHandler
      */
     public static void write( OutputStream out, Dictionary properties ) throws IOException
     {
-        BufferedWriter bw = new BufferedWriter( new OutputStreamWriter( out, ENCODING ) );
+        write( out, properties, false );
+    }
+
 
-        for ( Enumeration ce = properties.keys(); ce.hasMoreElements(); )
+    /**
+     * Writes the configuration data from the <code>Dictionary</code> to the
+     * given <code>OutputStream</code>, optionally in canonical form.
+     * <p>
+     * In canonical form the properties are written sorted by key and the
+     * elements of <code>Set</code> values sorted by their written form, so
+     * equal dictionaries always produce the same bytes. Otherwise the
+     * properties are written in the enumeration order of the dictionary.
+     * <p>
+     * This method writes at the current location in the stream and does not
+     * close the outputstream.
+     * 
+     * @param out
+     *            The <code>OutputStream</code> to write the configurtion data
+     *            to.
+     * @param properties
+     *            The <code>Dictionary</code> to write.
+     * @param canonical
+     *            Whether to write the canonical form.
+     * @throws IOException
+     *             If an error occurrs writing to the output stream.
+     */
+    public static void write( OutputStream out, Dictionary properties, boolean canonical ) throws IOException
+    {
+        Output output = new Output( out );
+
+        Iterator keys;
+        if ( canonical )
+        {
+            List sorted = Collections.list( properties.keys() );
+            Collections.sort( sorted );
+            keys = sorted.iterator();
+        }
+        else
         {
-            String key = ( String ) ce.nextElement();
+            keys = new EnumerationIterator( properties.keys() );
+        }
+
+        try
+        {
+            while ( keys.hasNext() )
+            {
+                String key = ( String ) keys.next();
 
-            // cfg = prop "=" value "." .
-            writeQuoted( bw, key );
-            bw.write( TOKEN_EQ );
-            writeValue( bw, properties.get( key ) );
-            bw.write( CRLF );
+                // cfg = prop "=" value "." .
+                writeQuoted( output, key );
+                output.write( ( char ) TOKEN_EQ );
+                writeValue( output, properties.get( key ), canonical );
+                output.write( CRLF );
+            }
+        }
+        catch ( OutputFailure of )
+        {
+            throw ( IOException ) of.getCause();
         }
 
-        bw.flush();
+        output.flush( true );
     }
 
 
@@ -233,7 +284,28 @@ public class ConfigurationHandler
      */
     public static Dictionary read( InputStream ins ) throws IOException
     {
-        return new ConfigurationHandler().readInternal( ins );
+        ConfigurationHandler handler = acquire();
+        try
+        {
+            return handler.readInternal( ins );
+        }
+        finally
+        {
+            handler.release();
+        }
+    }
+
+
+    private static ConfigurationHandler acquire()
+    {
+        synchronized ( READERS )
+        {
+            if ( !READERS.isEmpty() )
+            {
+                return ( ConfigurationHandler ) READERS.remove( READERS.size() - 1 );
+            }
+        }
+        return new ConfigurationHandler();
     }
 
 
@@ -241,10 +313,44 @@ public class ConfigurationHandler
     // outside
     private ConfigurationHandler()
     {
+        decoder = Charset.forName( ENCODING ).newDecoder().onMalformedInput( CodingErrorAction.REPLACE )
+            .onUnmappableCharacter( CodingErrorAction.REPLACE );
     }
 
     // ---------- Configuration Input Implementation ---------------------------
 
+    private static final int BUFFER_SIZE = 8192;
+
+    // scratch buffers grown beyond this size are not kept for the next file
+    private static final int MAX_RETAINED_SCRATCH = 64 * 1024;
+
+    private static final int INITIAL_ARRAY_SCRATCH = 16;
+
+    private static final int NO_PUSHBACK = -2;
+
+    // readers not in use, their buffers are reused for the next file; not
+    // kept per thread, framework threads outlive the bundle and would keep
+    // its class loader
+    private static final List READERS = new ArrayList();
+
+    private static final int MAX_POOLED_READERS = 8;
+
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate( BUFFER_SIZE );
+    private final char[] window = new char[BUFFER_SIZE];
+    private final CharBuffer chars = CharBuffer.wrap( window );
+    private final char[] unicode = new char[4];
+    private StringBuilder scratch = new StringBuilder();
+    private long[] longs = new long[INITIAL_ARRAY_SCRATCH];
+    private Object[] objects = new Object[INITIAL_ARRAY_SCRATCH];
+
+    private InputStream in;
+    private boolean eof;
+    private boolean flushed;
+    private int windowPos;
+    private int windowLen;
+    private int pushback;
+
     private int token;
     private String tokenValue;
     private int line;
@@ -253,8 +359,15 @@ public class ConfigurationHandler
 
     private Dictionary readInternal( InputStream ins ) throws IOException
     {
-        BufferedReader br = new BufferedReader( new InputStreamReader( ins, ENCODING ) );
-        PushbackReader pr = new PushbackReader( br, 1 );
+        in = ins;
+        decoder.reset();
+        bytes.clear();
+        bytes.flip();
+        eof = false;
+        flushed = false;
+        windowPos = 0;
+        windowLen = 0;
+        pushback = NO_PUSHBACK;
 
         token = 0;
         tokenValue = null;
@@ -263,18 +376,18 @@ public class ConfigurationHandler
 
         Hashtable configuration = new Hashtable();
         token = 0;
-        while ( nextToken( pr ) == TOKEN_NAME )
+        while ( nextToken() == TOKEN_NAME )
         {
             String key = tokenValue;
 
             // expect equal sign
-            if ( nextToken( pr ) != TOKEN_EQ )
+            if ( nextToken() != TOKEN_EQ )
             {
                 throw readFailure( token, TOKEN_EQ );
             }
 
             // expect the token value
-            Object value = readValue( pr );
+            Object value = readValue();
             if ( value != null )
             {
                 configuration.put( key, value );
@@ -285,25 +398,56 @@ public class ConfigurationHandler
     }
 
 
+    // drops the references to the last file
+    private void release()
+    {
+        in = null;
+        tokenValue = null;
+        if ( scratch.capacity() > MAX_RETAINED_SCRATCH )
+        {
+            scratch = new StringBuilder();
+        }
+        if ( longs.length > MAX_RETAINED_SCRATCH )
+        {
+            longs = new long[INITIAL_ARRAY_SCRATCH];
+        }
+        if ( objects.length > MAX_RETAINED_SCRATCH )
+        {
+            objects = new Object[INITIAL_ARRAY_SCRATCH];
+        }
+        else
+        {
+            Arrays.fill( objects, null );
+        }
+
+        synchronized ( READERS )
+        {
+            if ( READERS.size() < MAX_POOLED_READERS )
+            {
+                READERS.add( this );
+            }
+        }
+    }
+
+
     /**
      * value = type ( "[" values "]" | "(" values ")" | simple ) . values =
      * value { "," value } . simple = "{" stringsimple "}" . type = // 1-char
      * type code . stringsimple = // quoted string representation of the value .
      * 
-     * @param pr
      * @return
      * @throws IOException
      */
-    private Object readValue( PushbackReader pr ) throws IOException
+    private Object readValue() throws IOException
     {
         // read (optional) type code
-        int type = read( pr );
+        int type = read();
 
         // read value kind code if type code is not a value kinde code
         int code;
-        if ( code2Type.containsKey( new Integer( type ) ) )
+        if ( isTypeCode( type ) )
         {
-            code = read( pr );
+            code = read();
         }
         else
         {
@@ -314,13 +458,13 @@ public class ConfigurationHandler
         switch ( code )
         {
             case TOKEN_ARR_OPEN:
-                return readArray( type, pr );
+                return readArray( type );
 
             case TOKEN_VEC_OPEN:
-                return readCollection( type, pr );
+                return readCollection( type );
 
             case TOKEN_VAL_OPEN:
-                return readSimple( type, pr );
+                return readSimple( type );
 
             default:
                 return null;
@@ -328,35 +472,163 @@ public class ConfigurationHandler
     }
 
 
-    private Object readArray( int typeCode, PushbackReader pr ) throws IOException
+    private static boolean isTypeCode( int c )
     {
-        List list = new ArrayList();
+        switch ( c )
+        {
+            case TOKEN_SIMPLE_STRING:
+            case TOKEN_SIMPLE_INTEGER:
+            case TOKEN_SIMPLE_LONG:
+            case TOKEN_SIMPLE_FLOAT:
+            case TOKEN_SIMPLE_DOUBLE:
+            case TOKEN_SIMPLE_BYTE:
+            case TOKEN_SIMPLE_SHORT:
+            case TOKEN_SIMPLE_CHARACTER:
+            case TOKEN_SIMPLE_BOOLEAN:
+            case TOKEN_PRIMITIVE_INT:
+            case TOKEN_PRIMITIVE_LONG:
+            case TOKEN_PRIMITIVE_FLOAT:
+            case TOKEN_PRIMITIVE_DOUBLE:
+            case TOKEN_PRIMITIVE_BYTE:
+            case TOKEN_PRIMITIVE_SHORT:
+            case TOKEN_PRIMITIVE_CHAR:
+            case TOKEN_PRIMITIVE_BOOLEAN:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    private Object readArray( int typeCode ) throws IOException
+    {
+        switch ( typeCode )
+        {
+            case TOKEN_PRIMITIVE_INT:
+            case TOKEN_PRIMITIVE_LONG:
+            case TOKEN_PRIMITIVE_FLOAT:
+            case TOKEN_PRIMITIVE_DOUBLE:
+            case TOKEN_PRIMITIVE_BYTE:
+            case TOKEN_PRIMITIVE_SHORT:
+            case TOKEN_PRIMITIVE_CHAR:
+            case TOKEN_PRIMITIVE_BOOLEAN:
+                return readPrimitiveArray( typeCode );
+        }
+
+        Object[] values = objects;
+        int size = 0;
+        try
+        {
+            for ( ;; )
+            {
+                if ( !checkNext( TOKEN_VAL_OPEN ) )
+                {
+                    return null;
+                }
+
+                Object value = readSimple( typeCode );
+                if ( value == null )
+                {
+                    // abort due to error
+                    return null;
+                }
+
+                if ( size == values.length )
+                {
+                    Object[] grown = new Object[size * 2];
+                    System.arraycopy( values, 0, grown, 0, size );
+                    values = objects = grown;
+                }
+                values[size++] = value;
+
+                int c = read();
+                if ( c == TOKEN_ARR_CLOS )
+                {
+                    Class type = ( Class ) code2Type.get( new Integer( typeCode ) );
+                    Object array = Array.newInstance( type, size );
+                    System.arraycopy( values, 0, array, 0, size );
+                    return array;
+                }
+                else if ( c < 0 )
+                {
+                    return null;
+                }
+                else if ( c != TOKEN_COMMA )
+                {
+                    return null;
+                }
+            }
+        }
+        finally
+        {
+            // do not keep the values reachable
+            for ( int i = 0; i < size; i++ )
+            {
+                values[i] = null;
+            }
+        }
+    }
+
+
+    /**
+     * Reads an array of a primitive type. The elements are decoded straight
+     * from the scratch buffer into a reused <code>long[]</code> (floating
+     * point values as their raw bits) and copied once into an array of the
+     * requested type; no wrapper object is created.
+     */
+    private Object readPrimitiveArray( int typeCode ) throws IOException
+    {
+        long[] values = longs;
+        int size = 0;
         for ( ;; )
         {
-            if ( !checkNext( pr, TOKEN_VAL_OPEN ) )
+            if ( !checkNext( TOKEN_VAL_OPEN ) )
             {
                 return null;
             }
 
-            Object value = readSimple( typeCode, pr );
-            if ( value == null )
+            readQuotedValue();
+            long value;
+            switch ( typeCode )
             {
-                // abort due to error
-                return null;
+                case TOKEN_PRIMITIVE_INT:
+                case TOKEN_PRIMITIVE_FLOAT:
+                    value = parseInteger( Integer.MIN_VALUE, Integer.MAX_VALUE );
+                    break;
+                case TOKEN_PRIMITIVE_BYTE:
+                    value = parseInteger( Byte.MIN_VALUE, Byte.MAX_VALUE );
+                    break;
+                case TOKEN_PRIMITIVE_SHORT:
+                    value = parseInteger( Short.MIN_VALUE, Short.MAX_VALUE );
+                    break;
+                case TOKEN_PRIMITIVE_CHAR:
+                    if ( scratch.length() == 0 )
+                    {
+                        // abort due to error
+                        return null;
+                    }
+                    value = scratch.charAt( 0 );
+                    break;
+                case TOKEN_PRIMITIVE_BOOLEAN:
+                    value = parseBoolean() ? 1 : 0;
+                    break;
+                default:
+                    value = parseInteger( Long.MIN_VALUE, Long.MAX_VALUE );
             }
 
-            list.add( value );
+            if ( size == values.length )
+            {
+                long[] grown = new long[size * 2];
+                System.arraycopy( values, 0, grown, 0, size );
+                values = longs = grown;
+            }
+            values[size++] = value;
 
-            int c = read( pr );
+            int c = read();
             if ( c == TOKEN_ARR_CLOS )
             {
-                Class type = ( Class ) code2Type.get( new Integer( typeCode ) );
-                Object array = Array.newInstance( type, list.size() );
-                for ( int i = 0; i < list.size(); i++ )
-                {
-                    Array.set( array, i, list.get( i ) );
-                }
-                return array;
+                return toPrimitiveArray( typeCode, values, size );
             }
             else if ( c < 0 )
             {
@@ -370,17 +642,80 @@ public class ConfigurationHandler
     }
 
 
-    private Collection readCollection( int typeCode, PushbackReader pr ) throws IOException
+    private static Object toPrimitiveArray( int typeCode, long[] values, int size )
+    {
+        switch ( typeCode )
+        {
+            case TOKEN_PRIMITIVE_INT:
+            {
+                int[] array = new int[size];
+                for ( int i = 0; i < size; i++ )
+                    array[i] = ( int ) values[i];
+                return array;
+            }
+            case TOKEN_PRIMITIVE_LONG:
+            {
+                long[] array = new long[size];
+                System.arraycopy( values, 0, array, 0, size );
+                return array;
+            }
+            case TOKEN_PRIMITIVE_FLOAT:
+            {
+                float[] array = new float[size];
+                for ( int i = 0; i < size; i++ )
+                    array[i] = Float.intBitsToFloat( ( int ) values[i] );
+                return array;
+            }
+            case TOKEN_PRIMITIVE_DOUBLE:
+            {
+                double[] array = new double[size];
+                for ( int i = 0; i < size; i++ )
+                    array[i] = Double.longBitsToDouble( values[i] );
+                return array;
+            }
+            case TOKEN_PRIMITIVE_BYTE:
+            {
+                byte[] array = new byte[size];
+                for ( int i = 0; i < size; i++ )
+                    array[i] = ( byte ) values[i];
+                return array;
+            }
+            case TOKEN_PRIMITIVE_SHORT:
+            {
+                short[] array = new short[size];
+                for ( int i = 0; i < size; i++ )
+                    array[i] = ( short ) values[i];
+                return array;
+            }
+            case TOKEN_PRIMITIVE_CHAR:
+            {
+                char[] array = new char[size];
+                for ( int i = 0; i < size; i++ )
+                    array[i] = ( char ) values[i];
+                return array;
+            }
+            default:
+            {
+                boolean[] array = new boolean[size];
+                for ( int i = 0; i < size; i++ )
+                    array[i] = values[i] != 0;
+                return array;
+            }
+        }
+    }
+
+
+    private Collection readCollection( int typeCode ) throws IOException
     {
         Collection collection = new ArrayList();
         for ( ;; )
         {
-            if ( !checkNext( pr, TOKEN_VAL_OPEN ) )
+            if ( !checkNext( TOKEN_VAL_OPEN ) )
             {
                 return null;
             }
 
-            Object value = readSimple( typeCode, pr );
+            Object value = readSimple( typeCode );
             if ( value == null )
             {
                 // abort due to error
@@ -389,7 +724,7 @@ public class ConfigurationHandler
 
             collection.add( value );
 
-            int c = read( pr );
+            int c = read();
             if ( c == TOKEN_VEC_CLOS )
             {
                 return collection;
@@ -406,7 +741,7 @@ public class ConfigurationHandler
     }
 
 
-    private Object readSimple( int code, PushbackReader pr ) throws IOException
+    private Object readSimple( int code ) throws IOException
     {
         switch ( code )
         {
@@ -414,47 +749,54 @@ public class ConfigurationHandler
                 return null;
 
             case TOKEN_SIMPLE_STRING:
-                return readQuoted( pr );
+                return readQuoted();
 
                 // Simple/Primitive, only use wrapper classes
             case TOKEN_SIMPLE_INTEGER:
             case TOKEN_PRIMITIVE_INT:
-                return Integer.valueOf( readQuoted( pr ) );
+                readQuotedValue();
+                return Integer.valueOf( ( int ) parseInteger( Integer.MIN_VALUE, Integer.MAX_VALUE ) );
 
             case TOKEN_SIMPLE_LONG:
             case TOKEN_PRIMITIVE_LONG:
-                return Long.valueOf( readQuoted( pr ) );
+                readQuotedValue();
+                return Long.valueOf( parseInteger( Long.MIN_VALUE, Long.MAX_VALUE ) );
 
             case TOKEN_SIMPLE_FLOAT:
             case TOKEN_PRIMITIVE_FLOAT:
-                int fBits = Integer.parseInt( readQuoted( pr ) );
+                readQuotedValue();
+                int fBits = ( int ) parseInteger( Integer.MIN_VALUE, Integer.MAX_VALUE );
                 return new Float( Float.intBitsToFloat( fBits ) );
 
             case TOKEN_SIMPLE_DOUBLE:
             case TOKEN_PRIMITIVE_DOUBLE:
-                long dBits = Long.parseLong( readQuoted( pr ) );
+                readQuotedValue();
+                long dBits = parseInteger( Long.MIN_VALUE, Long.MAX_VALUE );
                 return new Double( Double.longBitsToDouble( dBits ) );
 
             case TOKEN_SIMPLE_BYTE:
             case TOKEN_PRIMITIVE_BYTE:
-                return Byte.valueOf( readQuoted( pr ) );
+                readQuotedValue();
+                return Byte.valueOf( ( byte ) parseInteger( Byte.MIN_VALUE, Byte.MAX_VALUE ) );
 
             case TOKEN_SIMPLE_SHORT:
             case TOKEN_PRIMITIVE_SHORT:
-                return Short.valueOf( readQuoted( pr ) );
+                readQuotedValue();
+                return Short.valueOf( ( short ) parseInteger( Short.MIN_VALUE, Short.MAX_VALUE ) );
 
             case TOKEN_SIMPLE_CHARACTER:
             case TOKEN_PRIMITIVE_CHAR:
-                String cString = readQuoted( pr );
-                if ( cString != null && cString.length() > 0 )
+                readQuotedValue();
+                if ( scratch.length() > 0 )
                 {
-                    return new Character( cString.charAt( 0 ) );
+                    return new Character( scratch.charAt( 0 ) );
                 }
                 return null;
 
             case TOKEN_SIMPLE_BOOLEAN:
             case TOKEN_PRIMITIVE_BOOLEAN:
-                return Boolean.valueOf( readQuoted( pr ) );
+                readQuotedValue();
+                return Boolean.valueOf( parseBoolean() );
 
                 // unknown type code
             default:
@@ -463,9 +805,80 @@ public class ConfigurationHandler
     }
 
 
-    private boolean checkNext( PushbackReader pr, int expected ) throws IOException
+    /**
+     * Parses the decimal integer held in the scratch buffer. Plain ASCII
+     * digits in range are converted in place; anything else is left to the
+     * <code>parse</code> methods of the JDK, which either accept it or throw
+     * the same <code>NumberFormatException</code> as ever.
+     */
+    private long parseInteger( long min, long max )
+    {
+        StringBuilder buf = scratch;
+        int len = buf.length();
+        if ( len > 0 && len <= 18 )
+        {
+            int i = 0;
+            boolean negative = buf.charAt( 0 ) == '-';
+            if ( negative )
+            {
+                i++;
+            }
+            if ( i < len )
+            {
+                long value = 0;
+                for ( ; i < len; i++ )
+                {
+                    char c = buf.charAt( i );
+                    if ( c < '0' || c > '9' )
+                    {
+                        break;
+                    }
+                    value = value * 10 + ( c - '0' );
+                }
+                if ( i == len )
+                {
+                    if ( negative )
+                    {
+                        value = -value;
+                    }
+                    if ( value >= min && value <= max )
+                    {
+                        return value;
+                    }
+                }
+            }
+        }
+
+        String str = buf.toString();
+        if ( max == Byte.MAX_VALUE )
+        {
+            return Byte.parseByte( str );
+        }
+        else if ( max == Short.MAX_VALUE )
+        {
+            return Short.parseShort( str );
+        }
+        else if ( max == Integer.MAX_VALUE )
+        {
+            return Integer.parseInt( str );
+        }
+        return Long.parseLong( str );
+    }
+
+
+    // same as Boolean.valueOf(String) on the scratch buffer
+    private boolean parseBoolean()
+    {
+        StringBuilder buf = scratch;
+        return buf.length() == 4 && Character.toLowerCase( buf.charAt( 0 ) ) == 't'
+            && Character.toLowerCase( buf.charAt( 1 ) ) == 'r' && Character.toLowerCase( buf.charAt( 2 ) ) == 'u'
+            && Character.toLowerCase( buf.charAt( 3 ) ) == 'e';
+    }
+
+
+    private boolean checkNext( int expected ) throws IOException
     {
-        int next = read( pr );
+        int next = read();
         if ( next < 0 )
         {
             return false;
@@ -480,17 +893,48 @@ public class ConfigurationHandler
     }
 
 
-    private String readQuoted( PushbackReader pr ) throws IOException
+    private String readQuoted() throws IOException
     {
-        StringBuffer buf = new StringBuffer();
+        readQuotedValue();
+        return scratch.toString();
+    }
+
+
+    // reads a quoted value into the scratch buffer
+    private void readQuotedValue() throws IOException
+    {
+        StringBuilder buf = scratch;
+        buf.setLength( 0 );
         for ( ;; )
         {
-            int c = read( pr );
+            // copy the run of plain characters straight from the window
+            if ( pushback == NO_PUSHBACK )
+            {
+                int start = windowPos;
+                int end = start;
+                while ( end < windowLen )
+                {
+                    char p = window[end];
+                    if ( p == '\\' || p == TOKEN_VAL_CLOS || p == '\r' || p == '\n' )
+                    {
+                        break;
+                    }
+                    end++;
+                }
+                if ( end > start )
+                {
+                    buf.append( window, start, end - start );
+                    pos += end - start;
+                    windowPos = end;
+                }
+            }
+
+            int c = read();
             switch ( c )
             {
                 // escaped character
                 case '\\':
-                    c = read( pr );
+                    c = read();
                     switch ( c )
                     {
                         // well known escapes
@@ -510,10 +954,9 @@ public class ConfigurationHandler
                             buf.append( '\r' );
                             break;
                         case 'u':// need 4 characters !
-                            char[] cbuf = new char[4];
-                            if ( read( pr, cbuf ) == 4 )
+                            if ( read( unicode ) == 4 )
                             {
-                                c = Integer.parseInt( new String( cbuf ), 16 );
+                                c = Integer.parseInt( new String( unicode ), 16 );
                                 buf.append( ( char ) c );
                             }
                             break;
@@ -529,7 +972,7 @@ public class ConfigurationHandler
 
                     // separator token
                 case TOKEN_VAL_CLOS:
-                    return buf.toString();
+                    return;
 
                     // no escaping
                 default:
@@ -539,9 +982,9 @@ public class ConfigurationHandler
     }
 
 
-    private int nextToken( PushbackReader pr ) throws IOException
+    private int nextToken() throws IOException
     {
-        int c = ignorableWhiteSpace( pr );
+        int c = ignorableWhiteSpace();
 
         // immediately return EOF
         if ( c < 0 )
@@ -553,7 +996,7 @@ public class ConfigurationHandler
         if ( NAME_CHARS.get( c ) )
         {
             // read the property name
-            tokenValue = readName( pr, ( char ) c );
+            tokenValue = readName( ( char ) c );
             return ( token = TOKEN_NAME );
         }
 
@@ -568,29 +1011,30 @@ public class ConfigurationHandler
     }
 
 
-    private int ignorableWhiteSpace( PushbackReader pr ) throws IOException
+    private int ignorableWhiteSpace() throws IOException
     {
-        int c = read( pr );
+        int c = read();
         while ( c >= 0 && Character.isWhitespace( ( char ) c ) )
         {
-            c = read( pr );
+            c = read();
         }
         return c;
     }
 
 
-    private String readName( PushbackReader pr, char firstChar ) throws IOException
+    private String readName( char firstChar ) throws IOException
     {
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = scratch;
+        buf.setLength( 0 );
         buf.append( firstChar );
 
-        int c = read( pr );
+        int c = read();
         while ( c >= 0 && NAME_CHARS.get( c ) )
         {
             buf.append( ( char ) c );
-            c = read( pr );
+            c = read();
         }
-        pr.unread( c );
+        unread( c );
 
         if ( buf.charAt( 0 ) == '.' || buf.charAt( buf.length() - 1 ) == '.' )
         {
@@ -601,15 +1045,15 @@ public class ConfigurationHandler
     }
 
 
-    private int read( PushbackReader pr ) throws IOException
+    private int read() throws IOException
     {
-        int c = pr.read();
+        int c = next();
         if ( c == '\r' )
         {
-            int c1 = pr.read();
+            int c1 = next();
             if ( c1 != '\n' )
             {
-                pr.unread( c1 );
+                unread( c1 );
             }
             c = '\n';
         }
@@ -628,11 +1072,11 @@ public class ConfigurationHandler
     }
 
 
-    private int read( PushbackReader pr, char[] buf ) throws IOException
+    private int read( char[] buf ) throws IOException
     {
         for ( int i = 0; i < buf.length; i++ )
         {
-            int c = read( pr );
+            int c = read();
             if ( c >= 0 )
             {
                 buf[i] = ( char ) c;
@@ -647,6 +1091,77 @@ public class ConfigurationHandler
     }
 
 
+    // returns the next raw character, without line ending handling
+    private int next() throws IOException
+    {
+        if ( pushback != NO_PUSHBACK )
+        {
+            int c = pushback;
+            pushback = NO_PUSHBACK;
+            return c;
+        }
+        if ( windowPos >= windowLen && !fill() )
+        {
+            return -1;
+        }
+        return window[windowPos++];
+    }
+
+
+    private void unread( int c )
+    {
+        pushback = c;
+    }
+
+
+    // decodes the next chunk of the input into the window
+    private boolean fill() throws IOException
+    {
+        windowPos = 0;
+        windowLen = 0;
+        if ( flushed )
+        {
+            return false;
+        }
+
+        chars.clear();
+        for ( ;; )
+        {
+            CoderResult result = decoder.decode( bytes, chars, eof );
+            if ( result.isOverflow() )
+            {
+                break;
+            }
+            if ( eof )
+            {
+                decoder.flush( chars );
+                flushed = true;
+                break;
+            }
+            if ( chars.position() > 0 )
+            {
+                // hand out what we have before blocking for more input
+                break;
+            }
+
+            bytes.compact();
+            int n = in.read( bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining() );
+            if ( n < 0 )
+            {
+                eof = true;
+            }
+            else
+            {
+                bytes.position( bytes.position() + n );
+            }
+            bytes.flip();
+        }
+
+        windowLen = chars.position();
+        return windowLen > 0;
+    }
+
+
     private IOException readFailure( int current, int expected )
     {
         return new IOException( "Unexpected token " + current + "; expected: " + expected + " (line=" + line + ", pos="
@@ -656,7 +1171,7 @@ public class ConfigurationHandler
 
     // ---------- Configuration Output Implementation --------------------------
 
-    private static void writeValue( Writer out, Object value ) throws IOException
+    private static void writeValue( Output out, Object value, boolean canonical ) throws IOException
     {
         Class clazz = value.getClass();
         if ( clazz.isArray() )
@@ -665,7 +1180,7 @@ public class ConfigurationHandler
         }
         else if ( value instanceof Collection )
         {
-            writeCollection( out, ( Collection ) value );
+            writeCollection( out, ( Collection ) value, canonical );
         }
         else
         {
@@ -675,7 +1190,7 @@ public class ConfigurationHandler
     }
 
 
-    private static void writeArray( Writer out, Object arrayValue ) throws IOException
+    private static void writeArray( Output out, Object arrayValue ) throws IOException
     {
         int size = Array.getLength( arrayValue );
         if ( size == 0 )
@@ -684,41 +1199,137 @@ public class ConfigurationHandler
         }
 
         writeType( out, arrayValue.getClass().getComponentType() );
-        out.write( TOKEN_ARR_OPEN );
-        for ( int i = 0; i < size; i++ )
+        out.write( ( char ) TOKEN_ARR_OPEN );
+
+        // primitive arrays are written without boxing their elements
+        if ( arrayValue instanceof int[] )
         {
-            if ( i > 0 )
-                out.write( TOKEN_COMMA );
-            writeSimple( out, Array.get( arrayValue, i ) );
+            int[] array = ( int[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                writeLong( out, array[i] );
+            }
+        }
+        else if ( arrayValue instanceof long[] )
+        {
+            long[] array = ( long[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                writeLong( out, array[i] );
+            }
+        }
+        else if ( arrayValue instanceof double[] )
+        {
+            double[] array = ( double[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                writeLong( out, Double.doubleToRawLongBits( array[i] ) );
+            }
+        }
+        else if ( arrayValue instanceof float[] )
+        {
+            float[] array = ( float[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                writeLong( out, Float.floatToRawIntBits( array[i] ) );
+            }
         }
-        out.write( TOKEN_ARR_CLOS );
+        else if ( arrayValue instanceof short[] )
+        {
+            short[] array = ( short[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                writeLong( out, array[i] );
+            }
+        }
+        else if ( arrayValue instanceof byte[] )
+        {
+            byte[] array = ( byte[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                writeLong( out, array[i] );
+            }
+        }
+        else if ( arrayValue instanceof char[] )
+        {
+            char[] array = ( char[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                out.write( ( char ) TOKEN_VAL_OPEN );
+                writeQuoted( out, array[i] );
+                out.write( ( char ) TOKEN_VAL_CLOS );
+            }
+        }
+        else if ( arrayValue instanceof boolean[] )
+        {
+            boolean[] array = ( boolean[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                out.write( array[i] ? "\"true\"" : "\"false\"" );
+            }
+        }
+        else
+        {
+            Object[] array = ( Object[] ) arrayValue;
+            for ( int i = 0; i < size; i++ )
+            {
+                writeSeparator( out, i );
+                writeSimple( out, array[i] );
+            }
+        }
+        out.write( ( char ) TOKEN_ARR_CLOS );
     }
 
 
-    private static void writeCollection( Writer out, Collection collection ) throws IOException
+    private static void writeSeparator( Output out, int index )
+    {
+        if ( index > 0 )
+        {
+            out.write( ( char ) TOKEN_COMMA );
+        }
+    }
+
+
+    private static void writeCollection( Output out, Collection collection, boolean canonical ) throws IOException
     {
         if ( collection.isEmpty() )
         {
             return;
         }
 
+        if ( canonical && collection instanceof Set )
+        {
+            // a set has no order of its own, write the elements sorted
+            List sorted = new ArrayList( collection );
+            Collections.sort( sorted, CANONICAL_ORDER );
+            collection = sorted;
+        }
+
         Iterator ci = collection.iterator();
         Object firstElement = ci.next();
 
         writeType( out, firstElement.getClass() );
-        out.write( TOKEN_VEC_OPEN );
+        out.write( ( char ) TOKEN_VEC_OPEN );
         writeSimple( out, firstElement );
 
         while ( ci.hasNext() )
         {
-            out.write( TOKEN_COMMA );
+            out.write( ( char ) TOKEN_COMMA );
             writeSimple( out, ci.next() );
         }
-        out.write( TOKEN_VEC_CLOS );
+        out.write( ( char ) TOKEN_VEC_CLOS );
     }
 
 
-    private static void writeType( Writer out, Class valueType ) throws IOException
+    private static void writeType( Output out, Class valueType ) throws IOException
     {
         Integer code = ( Integer ) type2Code.get( valueType );
         if ( code != null )
@@ -728,74 +1339,318 @@ public class ConfigurationHandler
     }
 
 
-    private static void writeSimple( Writer out, Object value ) throws IOException
+    private static void writeSimple( Output out, Object value ) throws IOException
     {
         if ( value instanceof Double )
         {
-            double dVal = ( ( Double ) value ).doubleValue();
-            value = new Long( Double.doubleToRawLongBits( dVal ) );
+            writeLong( out, Double.doubleToRawLongBits( ( ( Double ) value ).doubleValue() ) );
         }
         else if ( value instanceof Float )
         {
-            float fVal = ( ( Float ) value ).floatValue();
-            value = new Integer( Float.floatToRawIntBits( fVal ) );
+            writeLong( out, Float.floatToRawIntBits( ( ( Float ) value ).floatValue() ) );
+        }
+        else if ( value instanceof Integer || value instanceof Long || value instanceof Short
+            || value instanceof Byte )
+        {
+            writeLong( out, ( ( Number ) value ).longValue() );
+        }
+        else
+        {
+            out.write( ( char ) TOKEN_VAL_OPEN );
+            writeQuoted( out, String.valueOf( value ) );
+            out.write( ( char ) TOKEN_VAL_CLOS );
         }
+    }
+
 
-        out.write( TOKEN_VAL_OPEN );
-        writeQuoted( out, String.valueOf( value ) );
-        out.write( TOKEN_VAL_CLOS );
+    // writes a quoted number, digits never need escaping
+    private static void writeLong( Output out, long value )
+    {
+        out.write( ( char ) TOKEN_VAL_OPEN );
+        out.writeLong( value );
+        out.write( ( char ) TOKEN_VAL_CLOS );
     }
 
 
-    private static void writeQuoted( Writer out, String simple ) throws IOException
+    private static void writeQuoted( Output out, String simple ) throws IOException
     {
-        if ( simple == null || simple.length() == 0 )
+        if ( simple == null )
         {
             return;
         }
 
-        char c = 0;
         int len = simple.length();
         for ( int i = 0; i < len; i++ )
         {
-            c = simple.charAt( i );
-            switch ( c )
-            {
-                case '\\':
-                case TOKEN_VAL_CLOS:
-                    out.write( '\\' );
+            writeQuoted( out, simple.charAt( i ) );
+        }
+    }
+
+
+    private static void writeQuoted( Output out, char c )
+    {
+        switch ( c )
+        {
+            case '\\':
+            case TOKEN_VAL_CLOS:
+                out.write( '\\' );
+                out.write( c );
+                break;
+
+            // well known escapes
+            case '\b':
+                out.write( "\\b" );
+                break;
+            case '\t':
+                out.write( "\\t" );
+                break;
+            case '\n':
+                out.write( "\\n" );
+                break;
+            case '\f':
+                out.write( "\\f" );
+                break;
+            case '\r':
+                out.write( "\\r" );
+                break;
+
+            // other escaping
+            default:
+                if ( c < ' ' )
+                {
+                    out.write( "\\u00" );
+                    out.write( HEX_DIGITS[( c >> 4 ) & 0xf] );
+                    out.write( HEX_DIGITS[c & 0xf] );
+                }
+                else
+                {
                     out.write( c );
-                    break;
+                }
+        }
+    }
 
-                // well known escapes
-                case '\b':
-                    out.write( "\\b" );
-                    break;
-                case '\t':
-                    out.write( "\\t" );
-                    break;
-                case '\n':
-                    out.write( "\\n" );
-                    break;
-                case '\f':
-                    out.write( "\\f" );
-                    break;
-                case '\r':
-                    out.write( "\\r" );
-                    break;
 
-                // other escaping
-                default:
-                    if ( c < ' ' )
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // orders the elements of a set by their written form
+    private static final Comparator CANONICAL_ORDER = new Comparator()
+    {
+        public int compare( Object o1, Object o2 )
+        {
+            return canonicalForm( o1 ).compareTo( canonicalForm( o2 ) );
+        }
+
+
+        private String canonicalForm( Object value )
+        {
+            if ( value instanceof Double )
+            {
+                return String.valueOf( Double.doubleToRawLongBits( ( ( Double ) value ).doubleValue() ) );
+            }
+            else if ( value instanceof Float )
+            {
+                return String.valueOf( Float.floatToRawIntBits( ( ( Float ) value ).floatValue() ) );
+            }
+            return String.valueOf( value );
+        }
+    };
+
+    /**
+     * Unsynchronized, buffered UTF-8 output. Characters are collected in a
+     * <code>char[]</code> and encoded into a <code>byte[]</code> whenever it
+     * is full, without the per call locking of <code>java.io.Writer</code>.
+     */
+    private static final class Output
+    {
+        private final OutputStream out;
+        private final char[] chars = new char[BUFFER_SIZE];
+        private final byte[] bytes = new byte[BUFFER_SIZE * 3];
+        private int count;
+
+
+        Output( OutputStream out )
+        {
+            this.out = out;
+        }
+
+
+        void write( char c )
+        {
+            if ( count == chars.length )
+            {
+                drain();
+            }
+            chars[count++] = c;
+        }
+
+
+        void write( String str )
+        {
+            int len = str.length();
+            for ( int i = 0; i < len; i++ )
+            {
+                write( str.charAt( i ) );
+            }
+        }
+
+
+        // formats a decimal number straight into the buffer
+        void writeLong( long value )
+        {
+            if ( value == Long.MIN_VALUE )
+            {
+                write( "-9223372036854775808" );
+                return;
+            }
+            if ( chars.length - count < 20 )
+            {
+                drain();
+            }
+            if ( value < 0 )
+            {
+                chars[count++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for ( long v = value; v >= 10; v /= 10 )
+            {
+                digits++;
+            }
+            int end = count + digits;
+            for ( int i = end - 1; i >= count; i-- )
+            {
+                chars[i] = ( char ) ( '0' + ( value % 10 ) );
+                value /= 10;
+            }
+            count = end;
+        }
+
+
+        // encodes and writes the buffered characters
+        void flush( boolean end ) throws IOException
+        {
+            encode( end );
+            out.flush();
+        }
+
+
+        private void drain()
+        {
+            try
+            {
+                encode( false );
+            }
+            catch ( IOException ioe )
+            {
+                throw new OutputFailure( ioe );
+            }
+        }
+
+
+        private void encode( boolean end ) throws IOException
+        {
+            int b = 0;
+            int i = 0;
+            while ( i < count )
+            {
+                char c = chars[i];
+                if ( c < 0x80 )
+                {
+                    bytes[b++] = ( byte ) c;
+                }
+                else if ( c < 0x800 )
+                {
+                    bytes[b++] = ( byte ) ( 0xc0 | ( c >> 6 ) );
+                    bytes[b++] = ( byte ) ( 0x80 | ( c & 0x3f ) );
+                }
+                else if ( Character.isHighSurrogate( c ) )
+                {
+                    if ( i + 1 == count && !end )
+                    {
+                        // the low surrogate is still to come
+                        break;
+                    }
+                    if ( i + 1 < count && Character.isLowSurrogate( chars[i + 1] ) )
                     {
-                        String t = "000" + Integer.toHexString( c );
-                        out.write( "\\u" + t.substring( t.length() - 4 ) );
+                        int cp = Character.toCodePoint( c, chars[++i] );
+                        bytes[b++] = ( byte ) ( 0xf0 | ( cp >> 18 ) );
+                        bytes[b++] = ( byte ) ( 0x80 | ( ( cp >> 12 ) & 0x3f ) );
+                        bytes[b++] = ( byte ) ( 0x80 | ( ( cp >> 6 ) & 0x3f ) );
+                        bytes[b++] = ( byte ) ( 0x80 | ( cp & 0x3f ) );
                     }
                     else
                     {
-                        out.write( c );
+                        bytes[b++] = '?';
                     }
+                }
+                else if ( Character.isLowSurrogate( c ) )
+                {
+                    bytes[b++] = '?';
+                }
+                else
+                {
+                    bytes[b++] = ( byte ) ( 0xe0 | ( c >> 12 ) );
+                    bytes[b++] = ( byte ) ( 0x80 | ( ( c >> 6 ) & 0x3f ) );
+                    bytes[b++] = ( byte ) ( 0x80 | ( c & 0x3f ) );
+                }
+                i++;
             }
+            out.write( bytes, 0, b );
+
+            // keep a pending high surrogate
+            int rest = count - i;
+            if ( rest > 0 )
+            {
+                chars[0] = chars[i];
+            }
+            count = rest;
+        }
+    }
+
+    /**
+     * Carries an <code>IOException</code> out of the character writing
+     * methods, which do not declare it.
+     */
+    private static final class OutputFailure extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+
+        OutputFailure( IOException cause )
+        {
+            super( cause );
+        }
+    }
+
+    /**
+     * Iterates over an <code>Enumeration</code>.
+     */
+    private static final class EnumerationIterator implements Iterator
+    {
+        private final Enumeration enumeration;
+
+
+        EnumerationIterator( Enumeration enumeration )
+        {
+            this.enumeration = enumeration;
+        }
+
+
+        public boolean hasNext()
+        {
+            return enumeration.hasMoreElements();
+        }
+
+
+        public Object next()
+        {
+            return enumeration.nextElement();
+        }
+
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
         }
     }
 }
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.osgi.framework.Constants;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationEvent;
+import org.osgi.service.cm.ConfigurationListener;
+
+/**
+ * Index of the configurations created by the configuration loader, mapping
+ * the loader name (<code>felix.configurationloader.name</code>) of each
+ * configuration to its PID.
+ * <p>
+ * The index is built with a single query when the loader starts and kept
+ * current by listening to the configuration events, so finding the
+ * configuration of a file does not need a filter scan over all the
+ * configurations of the <code>ConfigurationAdmin</code>.
+ */
+class ConfigurationIndex implements ConfigurationListener {
+
+    private final ConfigurationAdmin configurationAdmin;
+    private final ServiceMediator services;
+
+    /** loader name to PID, guarded by this */
+    private final Map pidsByName = new HashMap();
+
+    /** PID to loader name, guarded by this */
+    private final Map namesByPid = new HashMap();
+
+    /** loader name to the checksum of the applied content, guarded by this */
+    private final Map checksumsByName = new HashMap();
+
+    /** PID to the number of update events caused by the loader, guarded by this */
+    private final Map pendingUpdates = new HashMap();
+
+    ConfigurationIndex(ConfigurationAdmin configurationAdmin, ServiceMediator services) {
+        this.configurationAdmin = configurationAdmin;
+        this.services = services;
+    }
+
+    /**
+     * Fills the index with every configuration carrying a loader name.
+     */
+    public void build() throws Exception {
+        Configuration[] configurations = configurationAdmin.listConfigurations(
+                "(" + ConfigurationLoader.CONFIGURATION_PROPERTY_NAME + "=*)");
+        if (configurations != null) {
+            for (int i = 0; i < configurations.length; i++) {
+                index(configurations[i]);
+            }
+        }
+        services.debug("Indexed {} configurations created by the configuration loader", new Integer(size()));
+    }
+
+    /**
+     * Returns the existing configuration with the given loader name.
+     *
+     * @param name The loader name.
+     * @return The configuration or <code>null</code> if there is none.
+     */
+    public Configuration getConfiguration(String name) throws Exception {
+        String pid;
+        synchronized (this) {
+            pid = (String) pidsByName.get(name);
+        }
+        if (pid == null) {
+            return null;
+        }
+
+        Configuration configuration = configurationAdmin.getConfiguration(pid, null);
+        if (configuration.getProperties() == null) {
+            // deleted since it has been indexed, the event is still on its
+            // way; drop the empty configuration the lookup has created
+            remove(pid);
+            configuration.delete();
+            return null;
+        }
+        return configuration;
+    }
+
+    /**
+     * Returns the PID of the configuration with the given loader name.
+     *
+     * @param name The loader name.
+     * @return The PID or <code>null</code> if there is no such configuration.
+     */
+    public synchronized String getPid(String name) {
+        return (String) pidsByName.get(name);
+    }
+
+    /**
+     * Returns the checksum of the content the loader applied to the
+     * configuration with the given loader name.
+     *
+     * @param name The loader name.
+     * @return The checksum or <code>null</code> if there is no such
+     *         configuration or it has been written without a checksum.
+     */
+    public synchronized String getChecksum(String name) {
+        return (String) checksumsByName.get(name);
+    }
+
+    /**
+     * Records the PID of a configuration written by the loader.
+     */
+    public synchronized void put(String name, String pid, String checksum) {
+        String oldPid = (String) pidsByName.put(name, pid);
+        if (oldPid != null && !oldPid.equals(pid)) {
+            namesByPid.remove(oldPid);
+        }
+        String oldName = (String) namesByPid.put(pid, name);
+        if (oldName != null && !oldName.equals(name) && pid.equals(pidsByName.get(oldName))) {
+            // renamed
+            pidsByName.remove(oldName);
+            checksumsByName.remove(oldName);
+        }
+        if (checksum != null) {
+            checksumsByName.put(name, checksum);
+        } else {
+            checksumsByName.remove(name);
+        }
+    }
+
+    /**
+     * Announces an update of a configuration by the loader. The loader
+     * records what it writes itself, so the event of the update does not
+     * need to look the configuration up again.
+     */
+    public synchronized void updating(String pid) {
+        Integer count = (Integer) pendingUpdates.get(pid);
+        pendingUpdates.put(pid, new Integer(count == null ? 1 : count.intValue() + 1));
+    }
+
+    /**
+     * Withdraws an announced update which has failed, no event follows.
+     */
+    public synchronized void updateFailed(String pid) {
+        takePendingUpdate(pid);
+    }
+
+    private synchronized boolean takePendingUpdate(String pid) {
+        Integer count = (Integer) pendingUpdates.get(pid);
+        if (count == null) {
+            return false;
+        }
+        if (count.intValue() == 1) {
+            pendingUpdates.remove(pid);
+        } else {
+            pendingUpdates.put(pid, new Integer(count.intValue() - 1));
+        }
+        return true;
+    }
+
+    public synchronized void remove(String pid) {
+        String name = (String) namesByPid.remove(pid);
+        if (name != null && pid.equals(pidsByName.get(name))) {
+            pidsByName.remove(name);
+            checksumsByName.remove(name);
+        }
+    }
+
+    public synchronized int size() {
+        return pidsByName.size();
+    }
+
+    // ---------- ConfigurationListener -----------------------------------------
+
+    public void configurationEvent(ConfigurationEvent event) {
+        switch (event.getType()) {
+        case ConfigurationEvent.CM_DELETED:
+            remove(event.getPid());
+            break;
+        case ConfigurationEvent.CM_UPDATED:
+            if (takePendingUpdate(event.getPid())) {
+                // written by the loader, which has recorded it already; if
+                // someone else updated it meanwhile, that event follows and
+                // reads the latest state
+                break;
+            }
+            // also an indexed PID: the user may have changed its loader name
+            // or its content
+            try {
+                Configuration[] configurations = configurationAdmin.listConfigurations(
+                        "(" + Constants.SERVICE_PID + "=" + escape(event.getPid()) + ")");
+                if (configurations != null && configurations.length > 0) {
+                    index(configurations[0]);
+                } else {
+                    remove(event.getPid());
+                }
+            } catch (Exception e) {
+                services.error("Cannot index configuration " + event.getPid(), e);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Escapes the characters of a value which are special in LDAP filters.
+     */
+    private static String escape(String value) {
+        StringBuilder buf = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '(' || c == ')' || c == '*' || c == '\\') {
+                buf.append('\\');
+            }
+            buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    private void index(Configuration configuration) {
+        Dictionary properties = configuration.getProperties();
+        Object name = (properties == null) ? null : properties.get(ConfigurationLoader.CONFIGURATION_PROPERTY_NAME);
+        if (name instanceof String) {
+            Object checksum = properties.get(ConfigurationLoader.CHECKSUM_PROPERTY_NAME);
+            put((String) name, configuration.getPid(), (checksum instanceof String) ? (String) checksum : null);
+        } else {
+            // the loader name has been removed, no longer ours
+            remove(configuration.getPid());
+        }
+    }
+}
@@ -18,29 +18,50 @@
  */
 package org.liveSense.misc.configloader;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.liveSense.misc.configloader.api.ConfigurationStageMBean;
+import org.liveSense.misc.configloader.api.LoaderMetricsMBean;
 
-import org.apache.commons.lang.StringUtils;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.cm.ConfigurationListener;
 
 /**
  * The <code>ContfigurationLoader</code> is the service
@@ -53,13 +74,144 @@ import org.osgi.service.cm.ConfigurationAdmin;
 
 public class ConfigurationLoader implements SynchronousBundleListener, BundleActivator {
 
-	private final static String CONFIGURATION_PROPERTY_NAME = "felix.configurationloader.name";
+	final static String CONFIGURATION_PROPERTY_NAME = "felix.configurationloader.name";
 
-	ConfigurationAdmin configurationAdmin;
-	ServiceMediator services;
-	private final PersistencyManager persistence = new PersistencyManager();
+	/** The property holding the fingerprint of the applied configuration. */
+	final static String CHECKSUM_PROPERTY_NAME = CONFIGURATION_PROPERTY_NAME + Util.CHECKSUM_SUFFIX;
+
+	/**
+	 * Framework property enabling the asynchronous processing of bundle
+	 * events. Disabled by default.
+	 */
+	public final static String ASYNC_PROPERTY = "felix.configurationloader.async";
+
+	/**
+	 * Framework property setting the number of worker threads used in
+	 * asynchronous mode and for the parallel scan on start. Defaults to the number of available processors.
+	 */
+	public final static String THREADS_PROPERTY = "felix.configurationloader.threads";
+
+	/**
+	 * Framework property controlling whether the bundles found on start are
+	 * scanned in parallel. Enabled by default.
+	 */
+	public final static String PARALLEL_SCAN_PROPERTY = "felix.configurationloader.parallelScan";
+
+	/**
+	 * Framework property setting the delay in milliseconds before the first
+	 * retry of a configuration which could not be applied. Default: 1000.
+	 */
+	public final static String RETRY_DELAY_PROPERTY = "felix.configurationloader.retry.delay";
+
+	/**
+	 * Framework property setting the upper limit in milliseconds of the
+	 * doubling retry delay. Default: 60000.
+	 */
+	public final static String RETRY_MAX_DELAY_PROPERTY = "felix.configurationloader.retry.maxDelay";
+
+	/**
+	 * Framework property setting how many times a failing update is tried
+	 * before it is given up. Default: 10.
+	 */
+	public final static String RETRY_ATTEMPTS_PROPERTY = "felix.configurationloader.retry.attempts";
+
+	/**
+	 * Framework property setting how many parsed configuration files are
+	 * kept in memory, 0 disables the cache. Default: 512.
+	 */
+	public final static String CACHE_SIZE_PROPERTY = "felix.configurationloader.cache.size";
+
+	/**
+	 * Framework property controlling whether the state of the loader is
+	 * kept across restarts, so the unchanged bundles are skipped on start.
+	 * Enabled by default.
+	 */
+	public final static String SNAPSHOT_PROPERTY = "felix.configurationloader.snapshot";
+
+	/**
+	 * Framework property setting the window in milliseconds within which
+	 * the updates of the same configuration are collapsed into one, 0
+	 * updates immediately. Default: 0.
+	 */
+	public final static String COALESCE_WINDOW_PROPERTY = "felix.configurationloader.coalesce.window";
+
+	/**
+	 * Framework property naming the file the timeline of the loader is
+	 * written to in the Chrome trace event format. Not set by default,
+	 * which disables tracing.
+	 */
+	public final static String TRACE_FILE_PROPERTY = "felix.configurationloader.trace.file";
+
+	/**
+	 * Framework property setting how many spans the trace keeps, the
+	 * oldest are dropped. Default: 65536.
+	 */
+	public final static String TRACE_SIZE_PROPERTY = "felix.configurationloader.trace.size";
+
+	/**
+	 * Framework property naming a directory of the local file system whose
+	 * configuration files are loaded and applied again when they change.
+	 * Not set by default.
+	 */
+	public final static String DIRECTORY_PROPERTY = "felix.configurationloader.dir";
+
+	/**
+	 * Framework property setting the interval in milliseconds the
+	 * configuration directory is checked at. Default: 250.
+	 */
+	public final static String DIRECTORY_INTERVAL_PROPERTY = "felix.configurationloader.dir.interval";
+
+	/**
+	 * Framework property enabling the backup of the configurations the
+	 * loader overwrites, restored when the loaded configuration is deleted.
+	 * Disabled by default.
+	 */
+	public final static String BACKUP_PROPERTY = "felix.configurationloader.backup";
+
+	/**
+	 * Framework property enabling the lazy mode: a configuration not yet in
+	 * the <code>ConfigurationAdmin</code> is written when its consumer is
+	 * registered. Disabled by default.
+	 */
+	public final static String LAZY_PROPERTY = "felix.configurationloader.lazy";
 
-	private final Set delayedBundles = new HashSet();
+	/** The name of the {@link LoaderMetricsMBean} in the platform MBean server. */
+	public final static String METRICS_OBJECT_NAME = "org.liveSense.misc.configloader:type=LoaderMetrics";
+
+	/** The name of the {@link ConfigurationStageMBean} in the platform MBean server. */
+	public final static String STAGE_OBJECT_NAME = "org.liveSense.misc.configloader:type=ConfigurationStage";
+
+	/** The number of spans the trace keeps by default. */
+	private final static int DEFAULT_TRACE_SIZE = 65536;
+
+	/** Time in milliseconds a backup waits for the sync of the journal. */
+	private final static long BACKUP_COMMIT_DELAY = 500;
+
+	/** Time in milliseconds to wait for the running work on stop. */
+	private final static long SHUTDOWN_WAIT = 10000;
+
+	volatile ConfigurationAdmin configurationAdmin;
+	ServiceMediator services;
+	ConfigurationIndex index;
+	private ServiceRegistration indexRegistration;
+	private BundleContext context;
+	private ScheduledExecutorService scheduler;
+	private RetryScheduler retries;
+	private volatile UpdateCoalescer coalescer;
+	private volatile BundleEventProcessor processor;
+	private volatile ParsedConfigurationCache cache;
+	private volatile StartupSnapshot snapshot;
+	private BundleMetadataCache metadata;
+	private final ProvenanceIndex provenance = new ProvenanceIndex();
+	private final LoaderMetrics metrics = new LoaderMetrics();
+	private ServiceRegistration metricsRegistration;
+	private ObjectName metricsName;
+	private volatile StartupTrace trace = StartupTrace.DISABLED;
+	private DirectoryWatcher watcher;
+	private volatile PersistencyManager persistence;
+	private volatile ConfigurationStage stage;
+	private ServiceRegistration stageRegistration;
+	private ObjectName stageName;
 
 	// ---------- BundleListener -----------------------------------------------
 	/**
@@ -77,49 +229,200 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 		// This is synchronous - take care to not block the system !!
 		//
 
+		final Bundle bundle = event.getBundle();
+		final ParsedConfigurationCache cache = this.cache;
+		if (event.getType() == BundleEvent.UPDATED) {
+			metadata.invalidate(bundle.getBundleId());
+		}
+		if (event.getType() == BundleEvent.UNINSTALLED) {
+			metadata.invalidate(bundle.getBundleId());
+			if (cache != null) {
+				cache.invalidate(bundle.getBundleId());
+			}
+			final StartupSnapshot snapshot = this.snapshot;
+			if (snapshot != null) {
+				snapshot.remove(bundle.getBundleId());
+			}
+		}
+
+		final BundleEventProcessor processor = this.processor;
+		if (processor != null) {
+			// asynchronous mode: just queue the work and return
+			switch (event.getType()) {
+			case BundleEvent.STARTING:
+				processor.submit(bundle.getBundleId(), new Runnable() {
+					public void run() {
+						handleStarting(bundle);
+					}
+				});
+				break;
+			case BundleEvent.STOPPING:
+				// the configuration of a stopping bundle is not needed anymore
+				processor.cancel(bundle.getBundleId());
+				break;
+			case BundleEvent.STOPPED:
+			case BundleEvent.UNINSTALLED:
+				processor.cancel(bundle.getBundleId());
+				processor.submit(bundle.getBundleId(), new Runnable() {
+					public void run() {
+						handleStopped(bundle);
+					}
+				});
+				break;
+			}
+			return;
+		}
+
 		switch (event.getType()) {
 		case BundleEvent.STARTING:
-			try {
-				registerBundle(event.getBundle());
-			} catch (Throwable t) {
-				services.error(
-						"bundleChanged: Problem loading initial configuration of bundle "
-								+ event.getBundle().getSymbolicName() + " ("
-								+ event.getBundle().getBundleId() + ")", t);
-			} finally {
-			}
+			handleStarting(bundle);
 			break;
 		case BundleEvent.STOPPED:
-			try {
-				unregisterBundle(event.getBundle());
-			} catch (Throwable t) {
-				services.error(
-						"bundleChanged: Problem unloading initial configuration of bundle "
-								+ event.getBundle().getSymbolicName() + " ("
-								+ event.getBundle().getBundleId() + ")", t);
-			} finally {
-			}
+		case BundleEvent.UNINSTALLED:
+			handleStopped(bundle);
 			break;
 		}
 	}
 
+	private void handleStarting(Bundle bundle) {
+		try {
+			registerBundle(bundle);
+		} catch (Throwable t) {
+			services.error(
+					"bundleChanged: Problem loading initial configuration of bundle "
+							+ bundle.getSymbolicName() + " ("
+							+ bundle.getBundleId() + ")", t);
+		} finally {
+		}
+	}
+
+	private void handleStopped(Bundle bundle) {
+		try {
+			unregisterBundle(bundle);
+		} catch (Throwable t) {
+			services.error(
+					"bundleChanged: Problem unloading initial configuration of bundle "
+							+ bundle.getSymbolicName() + " ("
+							+ bundle.getBundleId() + ")", t);
+		} finally {
+		}
+	}
+
 
 	public void start(BundleContext context) throws Exception {
 
+		this.context = context;
 		services = new ServiceMediator(context);
+		String traceFile = context.getProperty(TRACE_FILE_PROPERTY);
+		if (traceFile != null && traceFile.trim().length() > 0) {
+			int traceSize = getIntProperty(context, TRACE_SIZE_PROPERTY, DEFAULT_TRACE_SIZE);
+			if (traceSize <= 0) {
+				services.warn("Ignoring the trace size {}, keeping {} spans", new Integer(traceSize),
+						new Integer(DEFAULT_TRACE_SIZE));
+				traceSize = DEFAULT_TRACE_SIZE;
+			}
+			trace = new StartupTrace(new File(traceFile.trim()), traceSize);
+		}
+		final StartupTrace trace = this.trace;
+		final long startStarted = System.nanoTime();
+		// nothing is known about the bundles changed while the loader was stopped
+		metadata = new BundleMetadataCache();
+		scheduler = Executors.newSingleThreadScheduledExecutor(new LoaderThreadFactory("scheduler"));
+		retries = new RetryScheduler(scheduler, services,
+				getIntProperty(context, RETRY_DELAY_PROPERTY, 1000),
+				getIntProperty(context, RETRY_MAX_DELAY_PROPERTY, 60000),
+				getIntProperty(context, RETRY_ATTEMPTS_PROPERTY, 10));
+		int window = getIntProperty(context, COALESCE_WINDOW_PROPERTY, 0);
+		if (window > 0) {
+			coalescer = new UpdateCoalescer(scheduler, services, window);
+			metrics.setCoalescer(coalescer);
+		}
+		registerMetrics();
+		int cacheSize = getIntProperty(context, CACHE_SIZE_PROPERTY, 512);
+		if (cacheSize > 0) {
+			cache = new ParsedConfigurationCache(cacheSize);
+		}
+		File dataArea = context.getDataFile("");
+		if (dataArea != null && getBooleanProperty(context, BACKUP_PROPERTY, false)) {
+			persistence = new PersistencyManager(new File(dataArea, "backup"), scheduler, BACKUP_COMMIT_DELAY);
+			try {
+				// replays the journal, the bundles below are checked against memory
+				services.debug("Found {} configuration backups", new Integer(persistence.loadAll().size()));
+			} catch (IOException ioe) {
+				services.error("Cannot read the configuration backups, backup disabled", ioe);
+				persistence = null;
+			}
+		}
+		if (dataArea != null && getBooleanProperty(context, SNAPSHOT_PROPERTY, true)) {
+			long phase = System.nanoTime();
+			snapshot = new StartupSnapshot(dataArea, services, Util.systemProperties());
+			snapshot.load();
+			trace.end("start", "loadSnapshot", null, phase);
+		}
+		long phase = System.nanoTime();
 		configurationAdmin = services.getConfigurationAdminService(10000);
+		trace.end("start", "getConfigurationAdminService", null, phase);
+		if (configurationAdmin != null) {
+			phase = System.nanoTime();
+			openIndex();
+			trace.end("start", "openIndex", null, phase);
+		}
+		if (getBooleanProperty(context, LAZY_PROPERTY, false)) {
+			openStage();
+		}
+		int threads = getThreads(context);
+		if (getBooleanProperty(context, ASYNC_PROPERTY, false)) {
+			processor = new BundleEventProcessor(services, threads);
+			services.debug("Processing bundle events asynchronously with {} threads", new Integer(threads));
+		}
 		context.addBundleListener(this);
 
 		int ignored = 0;
+		long started = System.nanoTime();
 		try {
 			Bundle[] bundles = context.getBundles();
+
+			// the bundles whose configurations are still applied as they
+			// were on the previous run need not be read at all
+			boolean[] unchanged = new boolean[bundles.length];
+			int skipped = 0;
+			if (snapshot != null && index != null) {
+				phase = System.nanoTime();
+				for (int i=0;i<bundles.length; i++) {
+					if ((bundles[i].getState() & (Bundle.ACTIVE)) != 0 && snapshot.isUnchanged(bundles[i], index)) {
+						unchanged[i] = true;
+						skipped++;
+					}
+				}
+				services.info("Skipping {} bundles unchanged since the previous run", new Integer(skipped));
+				trace.end("start", "checkSnapshot", null, phase);
+			}
+
+			// read and parse the configurations of the ACTIVE bundles up front,
+			// in parallel if possible
+			Future[] prepared = null;
+			if (threads > 1 && getBooleanProperty(context, PARALLEL_SCAN_PROPERTY, true)) {
+				phase = System.nanoTime();
+				prepared = scanBundles(bundles, unchanged, threads);
+				trace.end("start", "scanBundles", null, phase);
+			}
+
+			phase = System.nanoTime();
 			for (int i=0;i<bundles.length; i++) {
 				Bundle bundle = bundles[i];
 
 				if ((bundle.getState() & (Bundle.ACTIVE)) != 0) {
 					// load configurations from bundles which are ACTIVE
 					try {
-						registerBundle(bundle);
+						if (unchanged[i]) {
+							services.debug("Bundle {} is unchanged since the previous run", bundle.getSymbolicName());
+							recordProvenance(bundle, snapshot.getFiles(bundle.getBundleId()));
+						} else if (prepared != null && prepared[i] != null) {
+							services.debug("Registering bundle {} for configuration loading.", bundle.getSymbolicName());
+							registerBundleInternal(bundle, getPrepared(prepared[i]));
+						} else {
+							registerBundle(bundle);
+						}
 					} catch (Throwable t) {
 						services.error(
 								"Problem loading initial configuration of bundle "
@@ -146,19 +449,165 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 					ignored++;
 				}
 			}
-			services.debug(
-					"Out of "+bundles.length+" bundles, "+ignored+" were not in a suitable state for initial config loading");
+			trace.end("start", "applyBundles", null, phase);
+			services.debug("Out of {} bundles, {} were not in a suitable state for initial config loading",
+					new Integer(bundles.length), new Integer(ignored));
+			phase = System.nanoTime();
+			storeSnapshot();
+			trace.end("start", "storeSnapshot", null, phase);
+
+			// the configurations of the directory take precedence over the bundles
+			String directory = context.getProperty(DIRECTORY_PROPERTY);
+			if (directory != null && directory.trim().length() > 0) {
+				phase = System.nanoTime();
+				watcher = new DirectoryWatcher(this, scheduler, services, new File(directory.trim()),
+						getIntProperty(context, DIRECTORY_INTERVAL_PROPERTY, 250));
+				watcher.open();
+				trace.end("start", "loadDirectory", directory, phase);
+			}
+			services.info("Loaded the initial configurations in {} ms: {}",
+					new Long((System.nanoTime() - started) / 1000000), metrics);
 		} catch (Throwable t) {
 			services.error("activate: Problem while loading initial configuration", t);
 		} finally {
 		}
+		trace.end("start", "start", null, startStarted);
+		writeTrace();
+
+
+	}
 
+	/**
+	 * Reads and parses the configurations of all ACTIVE bundles in parallel.
+	 * Nothing is written to the <code>ConfigurationAdmin</code> here, the
+	 * results are applied afterwards in bundle order, so the outcome does not
+	 * depend on the scheduling of the threads.
+	 *
+	 * @param bundles The bundles to scan.
+	 * @param unchanged The bundles to skip, by bundle index.
+	 * @param threads The number of threads to use.
+	 * @return The pending results by bundle index; <code>null</code> for the
+	 *         bundles which were not scanned.
+	 */
+	private Future[] scanBundles(Bundle[] bundles, boolean[] unchanged, int threads) throws InterruptedException {
+		final Future[] prepared = new Future[bundles.length];
+		final AtomicLong busy = new AtomicLong();
+		final long started = System.nanoTime();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new LoaderThreadFactory("scan"));
+		try {
+			for (int i=0;i<bundles.length; i++) {
+				final Bundle bundle = bundles[i];
+				if ((bundle.getState() & (Bundle.ACTIVE)) != 0 && !unchanged[i]) {
+					prepared[i] = executor.submit(new Callable() {
+						public Object call() throws Exception {
+							long taskStarted = System.nanoTime();
+							try {
+								return prepareBundle(bundle);
+							} finally {
+								busy.addAndGet(System.nanoTime() - taskStarted);
+							}
+						}
+					});
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		long wall = (System.nanoTime() - started) / 1000000;
+		long sequential = busy.get() / 1000000;
+		if (services.isInfoEnabled()) {
+			services.info(ServiceMediator.format(
+					"Scanned {} bundles in {} ms using {} threads, sequential scan would take {} ms (saved {} ms)",
+					new Object[] { new Integer(bundles.length), new Long(wall), new Integer(threads),
+							new Long(sequential), new Long(Math.max(0, sequential - wall)) }));
+		}
+		return prepared;
+	}
 
+	/**
+	 * Returns the result of a parallel scan, rethrowing its failure.
+	 */
+	private static List getPrepared(Future prepared) throws Exception {
+		try {
+			return (List)prepared.get();
+		} catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception)cause;
+			}
+			throw ee;
+		}
 	}
 
 	public void stop(BundleContext context) throws Exception {
 		context.removeBundleListener(this);
 
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+
+		if (stage != null) {
+			// the staged configurations are staged again on the next start
+			closeStage();
+		}
+
+		if (processor != null) {
+			processor.shutdown(SHUTDOWN_WAIT);
+			processor = null;
+		}
+
+		if (coalescer != null) {
+			// the pending updates are not lost, the ConfigurationAdmin is still there
+			coalescer.flush();
+			services.debug("Collapsed {} configuration updates", new Long(coalescer.getCollapsed()));
+			coalescer = null;
+		}
+
+		if (persistence != null) {
+			try {
+				persistence.close();
+			} catch (IOException ioe) {
+				services.warn("Cannot write the configuration backups: {}", ioe);
+			}
+			persistence = null;
+		}
+
+		if (scheduler != null) {
+			retries.clear();
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+
+		if (cache != null) {
+			services.debug("Dropping {}", cache);
+			cache = null;
+		}
+
+		if (snapshot != null) {
+			storeSnapshot();
+			snapshot = null;
+		}
+
+		unregisterMetrics();
+
+		// the trace covers the bundle events since the start as well
+		writeTrace();
+		trace = StartupTrace.DISABLED;
+
+		synchronized (this) {
+			if (indexRegistration != null) {
+				indexRegistration.unregister();
+				indexRegistration = null;
+			}
+			index = null;
+			configurationAdmin = null;
+		}
+		this.context = null;
+
 		if (services != null) {
 			services.deactivate();
 			services = null;
@@ -167,6 +616,79 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 
 
 
+	/**
+	 * Publishes the metrics as a service and in the platform MBean server.
+	 */
+	private void registerMetrics() {
+		metricsRegistration = context.registerService(LoaderMetricsMBean.class.getName(), metrics, null);
+		metricsName = registerMBean(metrics, LoaderMetricsMBean.class, METRICS_OBJECT_NAME);
+	}
+
+	private void unregisterMetrics() {
+		unregisterMBean(metricsName);
+		metricsName = null;
+		if (metricsRegistration != null) {
+			metricsRegistration.unregister();
+			metricsRegistration = null;
+		}
+	}
+
+	/**
+	 * Starts staging the configurations for their consumers and publishes
+	 * the stage as a service and in the platform MBean server.
+	 */
+	private void openStage() throws Exception {
+		ConfigurationStage stage = new ConfigurationStage(scheduler, services);
+		stage.open(context);
+		this.stage = stage;
+		stageRegistration = context.registerService(ConfigurationStageMBean.class.getName(), stage, null);
+		stageName = registerMBean(stage, ConfigurationStageMBean.class, STAGE_OBJECT_NAME);
+	}
+
+	private void closeStage() {
+		unregisterMBean(stageName);
+		stageName = null;
+		if (stageRegistration != null) {
+			stageRegistration.unregister();
+			stageRegistration = null;
+		}
+		stage.close(context);
+		services.debug("Dropping {} staged configurations", new Integer(stage.getStagedCount()));
+		stage = null;
+	}
+
+	/**
+	 * Registers an MBean with the platform MBean server. The management
+	 * interface is given explicitly, it is in the exported API package and
+	 * not next to the implementation.
+	 *
+	 * @return The name of the MBean or <code>null</code> if it cannot be
+	 *         registered.
+	 */
+	private ObjectName registerMBean(Object mbean, Class managementInterface, String objectName) {
+		try {
+			ObjectName name = new ObjectName(objectName);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new StandardMBean(mbean, managementInterface), name);
+			return name;
+		} catch (Throwable t) {
+			// JMX is optional, the service is still there
+			services.warn("Cannot register the MBean {}: {}", objectName, t);
+			return null;
+		}
+	}
+
+	private void unregisterMBean(ObjectName name) {
+		if (name != null) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				server.unregisterMBean(name);
+			} catch (Throwable t) {
+				services.debug("Cannot unregister the MBean {}: {}", name, t);
+			}
+		}
+	}
+
 	// ---------- Implementation helpers --------------------------------------
 	/**
 	 * Register a bundle and install the configurations included them.
@@ -176,94 +698,397 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 	public void registerBundle(final Bundle bundle) throws Exception {
 		// if this is an update, we have to uninstall the old content first
 
-		services.debug("Registering bundle "+bundle.getSymbolicName()+" for configuration loading.");
+		services.debug("Registering bundle {} for configuration loading.", bundle.getSymbolicName());
 
+		long started = System.nanoTime();
+		registerBundleInternal(bundle, prepareBundle(bundle));
+		trace.end("bundle", "registerBundle", bundle.getSymbolicName(), started);
+	}
 
-		if (registerBundleInternal(bundle)) {
 
-			// handle delayed bundles, might help now
-			int currentSize = -1;
-			for (int i = delayedBundles.size(); i > 0
-					&& currentSize != delayedBundles.size()
-					&& !delayedBundles.isEmpty(); i--) {
 
-				Iterator di = delayedBundles.iterator();
-				while (di.hasNext()) {
-					Bundle delayed = (Bundle)di.next();
-					if (registerBundleInternal(delayed)) {
-						di.remove();
-					}
+	private void registerBundleInternal(
+			final Bundle bundle, final List configurations) {
+
+		final StartupSnapshot snapshot = this.snapshot;
+		final long lastModified = bundle.getLastModified();
+
+		// check if bundle has initial configuration
+		if (configurations == null) {
+			services.debug("Bundle {} has no initial configuration", bundle.getSymbolicName());
+			provenance.put(bundle.getBundleId(), Collections.EMPTY_SET, Collections.EMPTY_SET);
+			if (snapshot != null) {
+				snapshot.record(bundle.getBundleId(), lastModified, Collections.EMPTY_LIST);
+			}
+			return;
+		}
+
+		// only a bundle whose configurations are all applied is recorded
+		long started = System.nanoTime();
+		List files = new ArrayList(configurations.size());
+		Set names = new HashSet();
+		Set uninstall = new HashSet();
+		for (Iterator ci = configurations.iterator(); ci.hasNext(); ) {
+			ParsedConfiguration parsed = (ParsedConfiguration)ci.next();
+			if (parsed.isValid()) {
+				String name = getPidName(parsed.getPid(), parsed.getFactoryPid());
+				names.add(name);
+				if (parsed.isUninstall()) {
+					uninstall.add(name);
 				}
-				currentSize = delayedBundles.size();
 			}
+			if (applyOrDefer(bundle, parsed) && files != null) {
+				files = recordFile(files, parsed);
+			} else {
+				files = null;
+			}
+		}
+		provenance.put(bundle.getBundleId(), names, uninstall);
+		trace.end("bundle", "applyBundle", bundle.getSymbolicName(), started);
+		if (snapshot != null) {
+			if (files != null) {
+				snapshot.record(bundle.getBundleId(), lastModified, files);
+			} else {
+				snapshot.remove(bundle.getBundleId());
+			}
+		}
+	}
 
-		} else {
-			// add to delayed bundles - if this is not an update!
-			delayedBundles.add(bundle);
+	/**
+	 * Adds an applied configuration to the snapshot records of its bundle.
+	 *
+	 * @return The records or <code>null</code> if the configuration cannot
+	 *         be recorded.
+	 */
+	private List recordFile(List files, ParsedConfiguration parsed) {
+		final ConfigurationIndex index = this.index;
+		if (!parsed.isValid() || index == null) {
+			return null;
+		}
+		String name = getPidName(parsed.getPid(), parsed.getFactoryPid());
+		// a queued update has no PID yet; the checksum is verified on the
+		// next start anyway
+		String pid = index.getPid(name);
+		if (pid == null) {
+			pid = "";
+		}
+		files.add(new StartupSnapshot.FileRecord(parsed.getUrl().getPath(), name, pid, parsed.getFingerprint(),
+				parsed.isUninstall()));
+		return files;
+	}
+
+	/**
+	 * Records the configurations of a bundle skipped on start from its
+	 * snapshot records.
+	 */
+	private void recordProvenance(Bundle bundle, List files) {
+		Set names = new HashSet();
+		Set uninstall = new HashSet();
+		for (Iterator fi = files.iterator(); fi.hasNext(); ) {
+			StartupSnapshot.FileRecord file = (StartupSnapshot.FileRecord)fi.next();
+			names.add(file.getName());
+			if (file.isUninstall()) {
+				uninstall.add(file.getName());
+			}
+		}
+		provenance.put(bundle.getBundleId(), names, uninstall);
+	}
+
+	private void writeTrace() {
+		final StartupTrace trace = this.trace;
+		if (trace.isEnabled()) {
+			try {
+				int spans = trace.write();
+				services.info("Wrote {} spans to the trace {}", new Integer(spans), trace.getFile());
+			} catch (IOException ioe) {
+				services.warn("Cannot write the trace {}: {}", trace.getFile(), ioe);
+			}
+		}
+	}
+
+	private void storeSnapshot() {
+		final StartupSnapshot snapshot = this.snapshot;
+		if (snapshot == null) {
+			// disabled, or no data area
+			return;
+		}
+		try {
+			snapshot.store();
+		} catch (IOException ioe) {
+			services.warn("Cannot write the startup snapshot: {}", ioe);
+		}
+	}
+
+	/**
+	 * Applies a configuration of a bundle. If the configuration cannot be
+	 * applied now, it is handed to the retry scheduler; the other
+	 * configurations of the bundle are not affected. With a coalescing
+	 * window the update is queued, a later update of the same configuration
+	 * within the window replaces it. In the lazy mode a configuration not
+	 * yet in the <code>ConfigurationAdmin</code> is staged until its
+	 * consumer is registered.
+	 *
+	 * @return <code>true</code> if the configuration has been applied or
+	 *         queued, <code>false</code> if it is deferred or staged.
+	 */
+	private boolean applyOrDefer(final Bundle bundle, final ParsedConfiguration parsed) {
+		final Callable retry = new Callable() {
+			public Object call() throws Exception {
+				if (getConfigurationAdmin() == null) {
+					return Boolean.FALSE;
+				}
+				applyConfig(bundle.getBundleId(), parsed);
+				return Boolean.TRUE;
+			}
+		};
+
+		if (getConfigurationAdmin() == null) {
+			metrics.retried(bundle.getBundleId(), parsed.getUrl().toString());
+			retries.defer(bundle.getBundleId(), parsed.getName(), RetryScheduler.CONFIGURATION_ADMIN_UNAVAILABLE, retry);
+			return false;
 		}
+
+		final ConfigurationStage stage = this.stage;
+		final ConfigurationIndex index = this.index;
+		if (stage != null && parsed.isValid() && index != null) {
+			final String name = getPidName(parsed.getPid(), parsed.getFactoryPid());
+			// a configuration already there is updated as usual; a staged
+			// one leaves the bundle out of the snapshot, it is staged again
+			// on the next start
+			if (index.getPid(name) == null && stage.stage(parsed.getPid(), name, bundle.getBundleId(),
+					new Runnable() {
+						public void run() {
+							applyOrCoalesce(bundle, parsed, retry);
+						}
+					})) {
+				services.debug("Staged configuration {} until its consumer is registered", name);
+				return false;
+			}
+		}
+		return applyOrCoalesce(bundle, parsed, retry);
 	}
 
+	/**
+	 * Applies a configuration now or, with a coalescing window, queues it.
+	 */
+	private boolean applyOrCoalesce(final Bundle bundle, final ParsedConfiguration parsed, final Callable retry) {
+		final UpdateCoalescer coalescer = this.coalescer;
+		if (coalescer != null) {
+			coalescer.submit(bundle.getBundleId(), getPidName(parsed.getPid(), parsed.getFactoryPid()), new Runnable() {
+				public void run() {
+					apply(bundle, parsed, retry);
+				}
+			});
+			return true;
+		}
+		return apply(bundle, parsed, retry);
+	}
+
+	/**
+	 * Applies a configuration, handing it to the retry scheduler if that
+	 * fails.
+	 *
+	 * @return <code>true</code> if the configuration has been applied.
+	 */
+	private boolean apply(Bundle bundle, ParsedConfiguration parsed, Callable retry) {
+		try {
+			applyConfig(bundle.getBundleId(), parsed);
+			return true;
+		} catch (Exception e) {
+			metrics.failed(bundle.getBundleId(), parsed.getUrl().toString());
+			metrics.retried(bundle.getBundleId(), parsed.getUrl().toString());
+			services.error("Cannot apply configuration " + parsed.getName() + " of bundle "
+					+ bundle.getSymbolicName() + " (" + bundle.getBundleId() + "), retrying later", e);
+			retries.defer(bundle.getBundleId(), parsed.getName(), RetryScheduler.UPDATE_FAILED, retry);
+			return false;
+		}
+	}
 
+	/**
+	 * Returns the <code>ConfigurationAdmin</code>, looking it up again if it
+	 * was not available so far.
+	 */
+	ConfigurationAdmin getConfigurationAdmin() {
+		ConfigurationAdmin admin = configurationAdmin;
+		if (admin == null) {
+			synchronized (this) {
+				if (configurationAdmin == null && services != null) {
+					admin = services.getConfigurationAdminService(ServiceMediator.NO_WAIT);
+					if (admin != null) {
+						configurationAdmin = admin;
+						openIndex();
+					}
+				}
+				admin = configurationAdmin;
+			}
+		}
+		return admin;
+	}
 
-	private boolean registerBundleInternal(
-			final Bundle bundle) throws Exception {
+	/**
+	 * Builds the index of the existing configurations and keeps it current.
+	 */
+	private synchronized void openIndex() {
+		// keep the index current before building it, so no change is lost
+		index = new ConfigurationIndex(configurationAdmin, services);
+		indexRegistration = context.registerService(ConfigurationListener.class.getName(), index, null);
+		try {
+			index.build();
+		} catch (Exception e) {
+			services.error("Cannot index the existing configurations", e);
+			indexRegistration.unregister();
+			indexRegistration = null;
+			index = null;
+		}
+	}
 
+	/**
+	 * Reads and parses the initial configurations of a bundle without
+	 * touching the <code>ConfigurationAdmin</code>, so this may run
+	 * concurrently for several bundles.
+	 *
+	 * @param bundle The bundle.
+	 * @return The list of {@link ParsedConfiguration}s in entry order, or
+	 *         <code>null</code> if the bundle has no initial configuration.
+	 */
+	List prepareBundle(final Bundle bundle) throws Exception {
 
 		// check if bundle has initial configuration
-		final Iterator pathIter = PathEntry.getContentPaths(bundle);
+		final StartupTrace trace = this.trace;
+		final long started = System.nanoTime();
+		final Iterator pathIter = metadata.getContentPaths(bundle);
+		trace.end("bundle", "readHeader", bundle.getSymbolicName(), started);
 		if (pathIter == null) {
-			services.debug("Bundle "+bundle.getSymbolicName()+" has no initial configuration");
-			return true;
+			return null;
 		}
 
+		final List configurations = new ArrayList();
+		final Properties system = Util.systemProperties();
 		while (pathIter.hasNext()) {
 			PathEntry path = (PathEntry)pathIter.next();
-			Enumeration entries = bundle.getEntryPaths(path.getPath());
+			long phase = System.nanoTime();
+			Enumeration entries = path.findEntries(bundle);
+			trace.end("bundle", "findEntries", path.getPath(), phase);
 
 			if (entries != null) {
 				while (entries.hasMoreElements()) {
-					URL url = bundle.getEntry((String)entries.nextElement());
+					URL url = (URL)entries.nextElement();
 					if (canHandle(url)) {
-						install(url);
+						ParsedConfiguration parsed = parseConfig(bundle, url.getPath(), url, system);
+						parsed.setUninstall(path.isUninstall());
+						configurations.add(parsed);
 					}
 				}
 			}
 		}
 
-		return false;
+		trace.end("bundle", "prepareBundle", bundle.getSymbolicName(), started);
+		return configurations;
 	}
 
 	/**
-	 * Unregister a bundle. Remove installed content.
+	 * Unregister a bundle. Remove installed content: the configurations
+	 * of the path entries with the <code>uninstall:=true</code> directive
+	 * which no other bundle provides are deleted, unless they have been
+	 * modified since they were loaded. Nothing is deleted while the
+	 * framework shuts down.
 	 *
 	 * @param bundle The bundle.
 	 */
 	public void unregisterBundle(final Bundle bundle) throws Exception {
 
+		retries.cancel(bundle.getBundleId());
+		final UpdateCoalescer coalescer = this.coalescer;
+		if (coalescer != null) {
+			// a queued update would recreate what is deleted below
+			coalescer.cancel(bundle.getBundleId());
+		}
+		final ConfigurationStage stage = this.stage;
+		if (stage != null) {
+			stage.remove(bundle.getBundleId());
+		}
 
-		// check if bundle has initial configuration
-		final Iterator pathIter = PathEntry.getContentPaths(bundle);
-		if (pathIter == null) {
-			services.debug("Bundle "+bundle.getSymbolicName()+" has no initial configuration");
+		final Set names = provenance.remove(bundle.getBundleId());
+		if (names.isEmpty()) {
+			return;
+		}
+		if (isFrameworkStopping()) {
+			services.debug("Keeping the configurations of bundle {} while the framework stops", bundle.getSymbolicName());
+			return;
+		}
+		final ConfigurationAdmin admin = getConfigurationAdmin();
+		if (admin == null) {
+			services.warn("Cannot delete the configurations {} of bundle {}, ConfigurationAdmin is not available",
+					names, bundle.getSymbolicName());
 			return;
 		}
 
-		// TODO : A boolean scr options if checked the configuration loaded by configurationloader is removed when the bundle contains remved. Now the configuuration stays untouched
-		/*
-        while (pathIter.hasNext()) {
-            PathEntry path = (PathEntry)pathIter.next();
-            Enumeration entries = bundle.getEntryPaths(path.getPath());
+		// one lookup for all configurations of the bundle
+		StringBuffer filter = new StringBuffer("(|");
+		for (Iterator ni = names.iterator(); ni.hasNext(); ) {
+			filter.append('(').append(CONFIGURATION_PROPERTY_NAME).append('=');
+			appendFilterValue(filter, (String)ni.next());
+			filter.append(')');
+		}
+		filter.append(')');
+
+		Configuration[] configurations = admin.listConfigurations(filter.toString());
+		int deleted = 0;
+		for (int i = 0; configurations != null && i < configurations.length; i++) {
+			Dictionary props = configurations[i].getProperties();
+			Object checksum = props == null ? null : props.get(CHECKSUM_PROPERTY_NAME);
+			if (props != null && checksum == null) {
+				// loaded before the checksum was recorded and not stamped
+				// since, as its content differs from the file: the user may
+				// have modified it
+				services.info("Keeping the configuration {} of bundle {}, it may have been modified",
+						props.get(CONFIGURATION_PROPERTY_NAME), bundle.getSymbolicName());
+				continue;
+			}
+			if (checksum != null && !checksum.equals(Util.fingerprint(props))) {
+				services.info("Keeping the configuration {} of bundle {}, it has been modified",
+						props.get(CONFIGURATION_PROPERTY_NAME), bundle.getSymbolicName());
+				continue;
+			}
+			configurations[i].delete();
+			deleted++;
+			if (props != null) {
+				String pid[] = parsePid((String)props.get(CONFIGURATION_PROPERTY_NAME));
+				restoreBackup(pid[0], pid[1]);
+			}
+		}
+		final StartupSnapshot snapshot = this.snapshot;
+		if (snapshot != null) {
+			snapshot.remove(bundle.getBundleId());
+		}
+		services.debug("Deleted {} configurations of bundle {}", new Integer(deleted), bundle.getSymbolicName());
+	}
 
-            if (entries != null) {
-                while (entries.hasMoreElements()) {
-                    URL url = bundle.getEntry((String)entries.nextElement());
-                    if (canHandle(url)) {
-                        uninstall(url);
-                    }
-                }
-            }
-        } */
+	/**
+	 * @return <code>true</code> if the framework is shutting down, all
+	 *         bundles are being stopped.
+	 */
+	private boolean isFrameworkStopping() {
+		final BundleContext context = this.context;
+		if (context == null) {
+			return true;
+		}
+		Bundle system = context.getBundle(0);
+		return system == null || system.getState() == Bundle.STOPPING;
+	}
 
+	/**
+	 * Appends a value to an LDAP filter, escaping the characters with a
+	 * special meaning.
+	 */
+	private static void appendFilterValue(StringBuffer filter, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '(' || c == ')' || c == '*') {
+				filter.append('\\');
+			}
+			filter.append(c);
+		}
 	}
 
 
@@ -300,104 +1125,301 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 	 * @return
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	boolean setConfig(URL f) throws Exception
 	{
-		Properties p = new Properties();
+		return applyConfig(parseConfig(f));
+	}
 
-		@SuppressWarnings("rawtypes")
-		Dictionary ht = new Hashtable();
+	/**
+	 * Reads the config file and resolves its macros.
+	 *
+	 * @param f
+	 *            Configuration file
+	 * @return The parsed configuration
+	 * @throws Exception
+	 */
+	ParsedConfiguration parseConfig(URL f) throws Exception
+	{
+		return parseConfig(f, Util.systemProperties());
+	}
+
+	/**
+	 * Reads the config file and resolves its macros.
+	 *
+	 * @param f
+	 *            Configuration file
+	 * @param system
+	 *            The snapshot of the system properties taken for the load
+	 * @return The parsed configuration
+	 * @throws Exception
+	 */
+	ParsedConfiguration parseConfig(URL f, Properties system) throws Exception
+	{
+		return parseConfig(-1, f, system);
+	}
+
+	private ParsedConfiguration parseConfig(long bundleId, URL f, Properties system) throws Exception
+	{
+		return resolveConfig(f, readConfig(bundleId, f, readFully(bundleId, f)), system);
+	}
+
+	/**
+	 * Reads a config file of a bundle and resolves its macros. The content
+	 * is taken from the cache while the bundle has not been modified.
+	 *
+	 * @param bundle
+	 *            The bundle containing the file
+	 * @param entryPath
+	 *            The entry path of the file in the bundle
+	 * @param f
+	 *            Configuration file
+	 * @param system
+	 *            The snapshot of the system properties taken for the load
+	 * @return The parsed configuration
+	 * @throws Exception
+	 */
+	ParsedConfiguration parseConfig(Bundle bundle, String entryPath, URL f, Properties system) throws Exception
+	{
+		final ParsedConfigurationCache cache = this.cache;
+		if (cache == null) {
+			return parseConfig(bundle.getBundleId(), f, system);
+		}
 
-		InputStream in = new BufferedInputStream(f.openStream());
+		long lastModified = bundle.getLastModified();
+		Dictionary ht = cache.get(bundle.getBundleId(), lastModified, entryPath);
+		if (ht == null) {
+			byte[] content = readFully(bundle.getBundleId(), f);
+			// the format depends on the file name, not only on the content
+			String contentKey = Util.contentHash(content) + (f.getFile().endsWith(".config") ? ".config" : ".cfg");
+			ht = cache.getContent(contentKey);
+			if (ht == null) {
+				ht = readConfig(bundle.getBundleId(), f, content);
+			}
+			cache.put(bundle.getBundleId(), lastModified, entryPath, contentKey, ht);
+		}
+		return resolveConfig(f, ht, system);
+	}
+
+	private byte[] readFully(long bundleId, URL f) throws IOException
+	{
+		long started = System.nanoTime();
+		byte[] content = readFully(f);
+		trace.end("file", "read", f, started);
+		metrics.read(bundleId, f.toString(), content.length);
+		return content;
+	}
+
+	private static byte[] readFully(URL f) throws IOException
+	{
+		InputStream in = f.openStream();
 		try
 		{
-			// If the file name ends with .config, we using the Felix configuration format
-			if (f.getFile().endsWith(".config")) {
-				ht = ConfigurationHandler.read(in);
-			} else {
-				in.mark(1);
-				boolean isXml = in.read() == '<';
-				in.reset();
-				if (isXml) {
-					p.loadFromXML(in);
-				} else {
-					p.load(in);
-				}
-				((Hashtable)ht).putAll(p);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int read;
+			while ((read = in.read(buf)) > 0) {
+				out.write(buf, 0, read);
 			}
+			return out.toByteArray();
 		}
 		finally
 		{
 			in.close();
 		}
+	}
 
-		// Searching for templated config entry.
-		// If we found one we get Java System properties
-		// named as the macros. The config became activated if that
-		// system proprty is set.
-
-		Pattern macros = Pattern.compile("\\$\\{(.*?)\\}");
-		boolean valid = true;
+	/**
+	 * Parses the content of a config file, recording the time it takes.
+	 */
+	private Dictionary readConfig(long bundleId, URL f, byte[] content) throws IOException
+	{
+		long started = System.nanoTime();
+		Dictionary ht = readConfig(f, new ByteArrayInputStream(content));
+		trace.end("file", "parse", f, started);
+		metrics.parsed(bundleId, f.toString(), System.nanoTime() - started);
+		return ht;
+	}
 
-		Enumeration enumr = ht.keys();
-		while (enumr.hasMoreElements()) {
-			Object key = enumr.nextElement();
-			if (ht.get(key) instanceof String) {
-				String str = (String)ht.get(key);
-				if (str != null) {
-					Matcher matcher = macros.matcher(str);
+	/**
+	 * Parses the content of a config file.
+	 *
+	 * @param f
+	 *            Configuration file
+	 * @param in
+	 *            The content in the binary, .config, XML or properties
+	 *            format, must support mark
+	 * @return The properties as read
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private static Dictionary readConfig(URL f, InputStream in) throws IOException
+	{
+		// The binary format is recognized by its header, whatever the file name is
+		if (BinaryConfigurationHandler.isBinary(in)) {
+			return BinaryConfigurationHandler.read(in);
+		}
 
-					HashSet<String> propNames = new HashSet<String>();
-					while (matcher.find()) {
-						propNames.add(matcher.group(1));
-					}
+		// If the file name ends with .config, we using the Felix configuration format
+		if (f.getFile().endsWith(".config")) {
+			return ConfigurationHandler.read(in);
+		}
 
-					for (String prop : propNames) {
-						String sysProp = System.getProperty(prop);
-						if (sysProp == null) {
-							valid = false;
-						}
-						if (valid) {
-							str = StringUtils.replace(str, "${"+prop+"}", sysProp);
-							//str = str.replaceAll("\\$\\{"+prop+"\\}", sysProp);
-						}
-					}
-					if (valid) {
-						ht.put(key, str);
-					}
-				}
-			}
+		Properties p = new Properties();
+		in.mark(1);
+		boolean isXml = in.read() == '<';
+		in.reset();
+		if (isXml) {
+			p.loadFromXML(in);
+		} else {
+			p.load(in);
 		}
+		@SuppressWarnings("rawtypes")
+		Dictionary ht = new Hashtable();
+		((Hashtable)ht).putAll(p);
+		return ht;
+	}
 
-		if (valid) {
-			Util.performSubstitution(p);
-			String pid[] = parsePid(getName(f.getFile()));
-			ht.put(CONFIGURATION_PROPERTY_NAME, getPidName(pid[0], pid[1]));
+	/**
+	 * Resolves the macros of the properties read from a config file.
+	 */
+	private ParsedConfiguration resolveConfig(URL f, Dictionary ht, Properties system)
+	{
+		// Resolving the templated config entries. A macro refers to a Java
+		// System property or another entry of the same config. The config
+		// is activated only if every macro could be resolved.
+		long started = System.nanoTime();
+		Set unresolved = Util.resolveMacros(ht, system);
+		trace.end("file", "substitute", f, started);
+		metrics.substituted(System.nanoTime() - started);
+
+		String name = getName(f.getFile());
+		String pid[] = parsePid(name);
+		return new ParsedConfiguration(f, name, pid[0], pid[1], ht, unresolved);
+	}
+
+	/**
+	 * Applies a parsed configuration to the <code>ConfigurationAdmin</code>.
+	 *
+	 * @param parsed
+	 *            The parsed configuration
+	 * @return
+	 * @throws Exception
+	 */
+	boolean applyConfig(ParsedConfiguration parsed) throws Exception
+	{
+		return applyConfig(-1, parsed);
+	}
 
+	/**
+	 * Applies a parsed configuration of a bundle to the
+	 * <code>ConfigurationAdmin</code>.
+	 *
+	 * @param bundleId
+	 *            The bundle the configuration was loaded from, -1 if none
+	 * @param parsed
+	 *            The parsed configuration
+	 * @return
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	boolean applyConfig(long bundleId, ParsedConfiguration parsed) throws Exception
+	{
+		String file = parsed.getUrl().toString();
+		if (parsed.isValid()) {
+			@SuppressWarnings("rawtypes")
+			Dictionary ht = parsed.getProperties();
+			String pid[] = new String[] { parsed.getPid(), parsed.getFactoryPid() };
+			String pidName = getPidName(pid[0], pid[1]);
+			String fingerprint = parsed.getFingerprint();
+			ht.put(CONFIGURATION_PROPERTY_NAME, pidName);
+			ht.put(CHECKSUM_PROPERTY_NAME, fingerprint);
+
+			long started = System.nanoTime();
 			Configuration config = getConfiguration(pid[0], pid[1]);
+			trace.end("cm", "lookup", parsed.getUrl(), started);
+			metrics.lookedUp(System.nanoTime() - started);
 
-			/*
 			// Backuping parameters for restore
-			String persistanceName = pid[0]+(pid[1] == null ? "" : "-" + pid[1]);
-			if (config.getProperties() != null && config.getProperties().get(CONFIGURATION_PROPERTY_NAME) == null) {
-				if (persistence.load(persistanceName).isEmpty()) {
+			final PersistencyManager persistence = this.persistence;
+			if (persistence != null && config.getProperties() != null
+					&& config.getProperties().get(CONFIGURATION_PROPERTY_NAME) == null) {
+				String persistanceName = getBackupName(pid[0], pid[1]);
+				if (!persistence.contains(persistanceName)) {
 					persistence.store(persistanceName, config.getProperties());
 				}
 			}
-			 */
 			if (config.getBundleLocation() != null) {
 				config.setBundleLocation(null);
 			}
 
 			// If the configuration does not created by configuration loader we update it
 			// In other cases (for example the user modified the loaded config) there is no configuration overwrite
-			if (config.getProperties() == null || config.getProperties().get(CONFIGURATION_PROPERTY_NAME) == null || !config.getProperties().get(CONFIGURATION_PROPERTY_NAME).equals(getName(f.getFile()))) {
-				config.update(ht);
+			if (needsUpdate(config.getProperties(), pidName, fingerprint)) {
+				final ConfigurationIndex index = this.index;
+				started = System.nanoTime();
+				if (index != null) {
+					index.updating(config.getPid());
+				}
+				boolean updated = false;
+				try {
+					config.update(ht);
+					updated = true;
+				} finally {
+					if (!updated && index != null) {
+						index.updateFailed(config.getPid());
+					}
+				}
+				trace.end("cm", "update", parsed.getUrl(), started);
+				metrics.updated(bundleId, file, System.nanoTime() - started);
+				if (index != null) {
+					index.put(pidName, config.getPid(), fingerprint);
+				}
+			} else {
+				metrics.skipped(bundleId, file);
+				services.debug("Configuration {} is up to date", pidName);
 			}
+		} else {
+			metrics.skipped(bundleId, file);
+			services.debug("Configuration {} is not activated, unresolved macros: {}", parsed.getName(),
+					parsed.getUnresolved());
 		}
 		return true;
 	}
 
+	/**
+	 * Decides whether the configuration currently stored has to be replaced
+	 * by the one loaded from the file.
+	 *
+	 * @param current The properties currently stored, may be <code>null</code>.
+	 * @param pidName The loader name of the configuration.
+	 * @param fingerprint The fingerprint of the loaded configuration.
+	 * @return <code>true</code> if <code>Configuration.update</code> is needed.
+	 */
+	static boolean needsUpdate(Dictionary current, String pidName, String fingerprint) {
+		if (current == null || current.get(CONFIGURATION_PROPERTY_NAME) == null
+				|| !current.get(CONFIGURATION_PROPERTY_NAME).equals(pidName)) {
+			// not created by the configuration loader
+			return true;
+		}
+
+		Object applied = current.get(CHECKSUM_PROPERTY_NAME);
+		if (applied == null) {
+			// loaded by an earlier version which did not record the
+			// fingerprint, a change of the file cannot be told from a change
+			// by the user: the fingerprint is only stamped if the content is
+			// the one of the file, which leaves the content as it is
+			return fingerprint.equals(Util.fingerprint(current));
+		}
+		if (applied.equals(fingerprint)) {
+			// nothing has changed
+			return false;
+		}
+
+		// the file has changed - only overwrite if the stored configuration
+		// is still the one loaded before, not modified by the user
+		return applied.equals(Util.fingerprint(current));
+	}
+
 	/**
 	 * Remove the configuration.
 	 *
@@ -412,19 +1434,37 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 		Configuration config = getConfiguration(pid[0], pid[1]);
 		config.delete();
 
-		/*
-        // Restore config if there is stored configuration presented
-        String persistanceName = pid[0]+(pid[1] == null ? "" : "-" + pid[1]);
-
-        Dictionary dict = persistence.load(persistanceName);
-        if (!dict.isEmpty()) {
-            config.update(dict);
-            persistence.delete(persistanceName);
-        }
-		 */
+		// Restore config if there is stored configuration presented
+		restoreBackup(pid[0], pid[1]);
 		return true;
 	}
 
+	/**
+	 * Restores the configuration the loader overwrote, if it has been
+	 * backed up. The loaded configuration must have been deleted.
+	 */
+	private void restoreBackup(String pid, String factoryPid) throws Exception
+	{
+		final PersistencyManager persistence = this.persistence;
+		if (persistence == null) {
+			return;
+		}
+		String persistanceName = getBackupName(pid, factoryPid);
+		if (persistence.contains(persistanceName)) {
+			Dictionary backup = persistence.load(persistanceName);
+			Configuration config = factoryPid != null
+					? configurationAdmin.createFactoryConfiguration(pid, null)
+					: configurationAdmin.getConfiguration(pid, null);
+			config.update(backup);
+			persistence.delete(persistanceName);
+			services.info("Restored the configuration {} from its backup", persistanceName);
+		}
+	}
+
+	private static String getBackupName(String pid, String factoryPid) {
+		return pid + (factoryPid == null ? "" : "-" + factoryPid);
+	}
+
 	String[] parsePid(String path)
 	{
 		String pid = null;
@@ -461,7 +1501,7 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 		Configuration oldConfiguration = findExistingConfiguration(pid, factoryPid);
 		if (oldConfiguration != null)
 		{
-			services.debug("Updating configuration from " + getPidName(pid, factoryPid));
+			services.debug("Updating configuration from {}", getPidName(pid, factoryPid));
 			return oldConfiguration;
 		}
 		else
@@ -482,6 +1522,10 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 
 	private Configuration findExistingConfiguration(String pid, String factoryPid) throws Exception
 	{
+		if (index != null) {
+			return index.getConfiguration(getPidName(pid, factoryPid));
+		}
+
 		String filter = "(" + CONFIGURATION_PROPERTY_NAME + "=" + getPidName(pid, factoryPid) + ")";
 		Configuration[] configurations = configurationAdmin.listConfigurations(filter);
 		if (configurations != null && configurations.length > 0)
@@ -530,4 +1574,36 @@ public class ConfigurationLoader implements SynchronousBundleListener, BundleAct
 		// not encoded or problems decoding, return the name unmodified
 		return name;
 	}
-}
\ No newline at end of file
+
+	private static boolean getBooleanProperty(BundleContext context, String name, boolean defaultValue) {
+		String value = context.getProperty(name);
+		return (value == null) ? defaultValue : Boolean.valueOf(value.trim()).booleanValue();
+	}
+
+	/**
+	 * @return The number of worker threads, the number of processors unless
+	 *         set to a valid number.
+	 */
+	private int getThreads(BundleContext context) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int threads = getIntProperty(context, THREADS_PROPERTY, processors);
+		if (threads <= 0) {
+			services.warn("Ignoring the number of threads {}, using {}", new Integer(threads),
+					new Integer(processors));
+			threads = processors;
+		}
+		return threads;
+	}
+
+	private static int getIntProperty(BundleContext context, String name, int defaultValue) {
+		String value = context.getProperty(name);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException nfe) {
+				// fall back to the default
+			}
+		}
+		return defaultValue;
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.liveSense.misc.configloader.api.ConfigurationStageMBean;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.ManagedService;
+import org.osgi.service.cm.ManagedServiceFactory;
+
+/**
+ * Holds the configurations of the lazy mode back until they are consumed:
+ * a staged configuration is written when a <code>ManagedService</code> or
+ * <code>ManagedServiceFactory</code> with its PID is registered, or when it
+ * is materialized explicitly. A configuration whose consumer is already
+ * registered is not staged at all.
+ * <p>
+ * The staged configurations are kept in memory only; those not written
+ * when the loader stops are staged again on the next start.
+ */
+public class ConfigurationStage implements ConfigurationStageMBean, ServiceListener {
+
+    private static final String FILTER = "(|(" + Constants.OBJECTCLASS + "=" + ManagedService.class.getName()
+            + ")(" + Constants.OBJECTCLASS + "=" + ManagedServiceFactory.class.getName() + "))";
+
+    private final Executor executor;
+    private final ServiceMediator services;
+
+    /** PID to (loader name to Staged), guarded by this */
+    private final Map staged = new HashMap();
+
+    /** PID to the number of consumers registered with it, guarded by this */
+    private final Map consumers = new HashMap();
+
+    /** consumer ServiceReference to the Set of PIDs it is counted for, guarded by this */
+    private final Map pidsByConsumer = new HashMap();
+
+    ConfigurationStage(Executor executor, ServiceMediator services) {
+        this.executor = executor;
+        this.services = services;
+    }
+
+    /**
+     * Starts tracking the consumers.
+     */
+    void open(BundleContext context) throws InvalidSyntaxException {
+        context.addServiceListener(this, FILTER);
+        ServiceReference[] references = context.getServiceReferences((String) null, FILTER);
+        for (int i = 0; references != null && i < references.length; i++) {
+            changed(references[i]);
+        }
+    }
+
+    void close(BundleContext context) {
+        context.removeServiceListener(this);
+        synchronized (this) {
+            consumers.clear();
+            pidsByConsumer.clear();
+        }
+    }
+
+    /**
+     * Stages the write of a configuration, unless its consumer is already
+     * there.
+     *
+     * @param pid The PID, or the factory PID of a factory configuration.
+     * @param name The loader name of the configuration.
+     * @param bundleId The bundle the configuration came from.
+     * @param write Writes the configuration.
+     * @return <code>true</code> if the configuration has been staged,
+     *         <code>false</code> if it is to be written now.
+     */
+    public synchronized boolean stage(String pid, String name, long bundleId, Runnable write) {
+        if (consumers.containsKey(pid)) {
+            return false;
+        }
+        Map byName = (Map) staged.get(pid);
+        if (byName == null) {
+            byName = new HashMap(2);
+            staged.put(pid, byName);
+        }
+        byName.put(name, new Staged(bundleId, write));
+        return true;
+    }
+
+    /**
+     * Drops the staged configurations of a bundle.
+     *
+     * @param bundleId The bundle id.
+     */
+    public synchronized void remove(long bundleId) {
+        for (Iterator si = staged.values().iterator(); si.hasNext(); ) {
+            Map byName = (Map) si.next();
+            for (Iterator ni = byName.values().iterator(); ni.hasNext(); ) {
+                if (((Staged) ni.next()).bundleId == bundleId) {
+                    ni.remove();
+                }
+            }
+            if (byName.isEmpty()) {
+                si.remove();
+            }
+        }
+    }
+
+    // ---------- ConfigurationStageMBean --------------------------------------
+
+    public synchronized String[] getStagedPids() {
+        return (String[]) new TreeSet(staged.keySet()).toArray(new String[staged.size()]);
+    }
+
+    public synchronized int getStagedCount() {
+        int count = 0;
+        for (Iterator si = staged.values().iterator(); si.hasNext(); ) {
+            count += ((Map) si.next()).size();
+        }
+        return count;
+    }
+
+    public int materialize(String pid) {
+        Map byName;
+        synchronized (this) {
+            byName = (Map) staged.remove(pid);
+        }
+        return byName == null ? 0 : run(byName.values());
+    }
+
+    public int materializeAll() {
+        List all = new ArrayList();
+        synchronized (this) {
+            for (Iterator si = staged.values().iterator(); si.hasNext(); ) {
+                all.addAll(((Map) si.next()).values());
+            }
+            staged.clear();
+        }
+        return run(all);
+    }
+
+    private int run(Collection writes) {
+        for (Iterator wi = writes.iterator(); wi.hasNext(); ) {
+            ((Staged) wi.next()).write.run();
+        }
+        return writes.size();
+    }
+
+    // ---------- ServiceListener ----------------------------------------------
+
+    public void serviceChanged(ServiceEvent event) {
+        switch (event.getType()) {
+        case ServiceEvent.REGISTERED:
+        case ServiceEvent.MODIFIED:
+            // a modified consumer may have changed its PIDs
+            changed(event.getServiceReference());
+            break;
+        case ServiceEvent.UNREGISTERING:
+            setPids(event.getServiceReference(), Collections.EMPTY_SET);
+            break;
+        }
+    }
+
+    /**
+     * Counts a registered or modified consumer for its current PIDs and
+     * materializes what is staged for the PIDs it newly consumes.
+     */
+    private void changed(ServiceReference reference) {
+        Set pids = getPids(reference);
+        final List writes = new ArrayList();
+        synchronized (this) {
+            for (Iterator pi = setPids(reference, pids).iterator(); pi.hasNext(); ) {
+                Map byName = (Map) staged.remove(pi.next());
+                if (byName != null) {
+                    writes.addAll(byName.values());
+                }
+            }
+        }
+        if (writes.isEmpty()) {
+            return;
+        }
+        services.debug("Materializing {} staged configurations for {}", new Integer(writes.size()), reference);
+        try {
+            // not on the thread registering the service
+            executor.execute(new Runnable() {
+                public void run() {
+                    ConfigurationStage.this.run(writes);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // shutting down, staged again on the next start
+        }
+    }
+
+    /**
+     * Replaces the PIDs a consumer is counted for: the PIDs it no longer
+     * has are counted out, the new ones in.
+     *
+     * @return The PIDs which had no consumer before.
+     */
+    private synchronized Set setPids(ServiceReference reference, Set pids) {
+        Set previous = pids.isEmpty()
+                ? (Set) pidsByConsumer.remove(reference)
+                : (Set) pidsByConsumer.put(reference, pids);
+        if (previous == null) {
+            previous = Collections.EMPTY_SET;
+        }
+        for (Iterator pi = previous.iterator(); pi.hasNext(); ) {
+            Object pid = pi.next();
+            if (!pids.contains(pid)) {
+                int count = ((Integer) consumers.get(pid)).intValue();
+                if (count == 1) {
+                    consumers.remove(pid);
+                } else {
+                    consumers.put(pid, new Integer(count - 1));
+                }
+            }
+        }
+        Set first = new HashSet();
+        for (Iterator pi = pids.iterator(); pi.hasNext(); ) {
+            Object pid = pi.next();
+            if (!previous.contains(pid)) {
+                Integer count = (Integer) consumers.get(pid);
+                consumers.put(pid, new Integer(count == null ? 1 : count.intValue() + 1));
+                if (count == null) {
+                    first.add(pid);
+                }
+            }
+        }
+        return first;
+    }
+
+    /**
+     * @return The PIDs of a consumer, a String, an array or a collection of
+     *         Strings.
+     */
+    private static Set getPids(ServiceReference reference) {
+        Object pid = reference.getProperty(Constants.SERVICE_PID);
+        Set pids = new HashSet();
+        if (pid instanceof String) {
+            pids.add(pid);
+        } else if (pid instanceof String[]) {
+            String[] array = (String[]) pid;
+            for (int i = 0; i < array.length; i++) {
+                pids.add(array[i]);
+            }
+        } else if (pid instanceof Collection) {
+            for (Iterator pi = ((Collection) pid).iterator(); pi.hasNext(); ) {
+                Object value = pi.next();
+                if (value instanceof String) {
+                    pids.add(value);
+                }
+            }
+        }
+        return pids;
+    }
+
+    private static final class Staged {
+
+        private final long bundleId;
+        private final Runnable write;
+
+        Staged(long bundleId, Runnable write) {
+            this.bundleId = bundleId;
+            this.write = write;
+        }
+    }
+}
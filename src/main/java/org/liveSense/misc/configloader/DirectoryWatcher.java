@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.io.File;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the configuration files of a directory of the local file system and
+ * applies the files which change while the loader runs.
+ * <p>
+ * The directory is polled: a new or modified file is applied once its size
+ * and modification time have not changed for one interval, so a file being
+ * written is not read half way, and a file replaced by a quick delete and
+ * create is applied once. A file which stays deleted for one interval
+ * deletes its configuration. Only the files which changed are applied
+ * again, each through the same path as the files of the bundles.
+ */
+class DirectoryWatcher implements Runnable {
+
+    private final ConfigurationLoader loader;
+    private final ScheduledExecutorService executor;
+    private final ServiceMediator services;
+    private final File directory;
+    private final long interval;
+
+    /** file name to FileState, only used by the polling thread */
+    private final Map files = new HashMap();
+
+    private ScheduledFuture future;
+
+    DirectoryWatcher(ConfigurationLoader loader, ScheduledExecutorService executor, ServiceMediator services,
+            File directory, long interval) {
+        this.loader = loader;
+        this.executor = executor;
+        this.services = services;
+        this.directory = directory;
+        this.interval = Math.max(1, interval);
+    }
+
+    /**
+     * Applies the files of the directory now and starts watching it.
+     */
+    public synchronized void open() {
+        poll(true);
+        try {
+            future = executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // shutting down
+        }
+    }
+
+    public synchronized void close() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+    }
+
+    public synchronized void run() {
+        try {
+            poll(false);
+        } catch (Throwable t) {
+            // an exception would stop the polling
+            services.error("Cannot check the configuration directory " + directory, t);
+        }
+    }
+
+    /**
+     * Checks the directory once.
+     *
+     * @param initial Whether the files are applied without waiting for them
+     *            to settle, used for the first check only.
+     */
+    private void poll(boolean initial) {
+        File[] list = directory.listFiles();
+        if (list == null) {
+            if (initial) {
+                services.warn("The configuration directory {} does not exist", directory);
+            }
+            list = new File[0];
+        }
+
+        for (int i = 0; i < list.length; i++) {
+            File file = list[i];
+            String name = file.getName();
+            if (!file.isFile() || !(name.endsWith(".cfg") || name.endsWith(".config"))) {
+                continue;
+            }
+            long lastModified = file.lastModified();
+            long length = file.length();
+            FileState state = (FileState) files.get(name);
+            if (state == null) {
+                state = new FileState();
+                files.put(name, state);
+            }
+            state.seen = true;
+            if (state.lastModified != lastModified || state.length != length || state.missing) {
+                // changed since the previous check, wait until it settles
+                state.lastModified = lastModified;
+                state.length = length;
+                state.missing = false;
+                state.pending = true;
+                if (!initial) {
+                    continue;
+                }
+            }
+            if (state.pending) {
+                state.pending = !apply(file);
+                state.applied |= !state.pending;
+            }
+        }
+
+        for (Iterator fi = files.entrySet().iterator(); fi.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) fi.next();
+            FileState state = (FileState) entry.getValue();
+            if (state.seen) {
+                state.seen = false;
+            } else if (!state.missing) {
+                // deleted since the previous check, wait for it to come back
+                state.missing = true;
+            } else if (!state.applied || delete(new File(directory, (String) entry.getKey()))) {
+                fi.remove();
+            }
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the file is to be applied on the next
+     *         check again.
+     */
+    private boolean apply(File file) {
+        if (loader.getConfigurationAdmin() == null) {
+            return false;
+        }
+        try {
+            services.debug("Applying the configuration file {}", file);
+            loader.update(toURL(file));
+        } catch (Exception e) {
+            // applied again when the file changes
+            services.error("Cannot apply the configuration file " + file, e);
+        }
+        return true;
+    }
+
+    private boolean delete(File file) {
+        if (loader.getConfigurationAdmin() == null) {
+            return false;
+        }
+        try {
+            services.info("Deleting the configuration of the removed file {}", file);
+            loader.uninstall(toURL(file));
+        } catch (Exception e) {
+            services.error("Cannot delete the configuration of the removed file " + file, e);
+        }
+        return true;
+    }
+
+    private static URL toURL(File file) throws Exception {
+        return file.toURI().toURL();
+    }
+
+    private static final class FileState {
+
+        private long lastModified = -1;
+        private long length = -1;
+
+        /** changed and not applied yet */
+        private boolean pending;
+
+        /** applied at least once, there may be a configuration to delete */
+        private boolean applied;
+
+        /** not found by the previous check */
+        private boolean missing;
+
+        /** found by the current check */
+        private boolean seen;
+    }
+}
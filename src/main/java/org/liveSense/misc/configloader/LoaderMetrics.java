@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.liveSense.misc.configloader.api.LoaderMetricsMBean;
+
+/**
+ * Counts what the loader does, in total, per bundle and per configuration
+ * file, and keeps the latency histograms of the phases of loading a
+ * configuration.
+ * <p>
+ * Recording is lock free, it is done by the bundle listener and the worker
+ * threads concurrently. A bundle id of <code>-1</code> stands for a file not
+ * loaded from a bundle.
+ */
+public class LoaderMetrics implements LoaderMetricsMBean {
+
+    private final Counters totals = new Counters();
+
+    /** bundle id to Counters */
+    private final ConcurrentMap bundles = new ConcurrentHashMap();
+
+    /** file URL to Counters */
+    private final ConcurrentMap files = new ConcurrentHashMap();
+
+    private final LatencyHistogram parse = new LatencyHistogram();
+    private final LatencyHistogram substitution = new LatencyHistogram();
+    private final LatencyHistogram lookup = new LatencyHistogram();
+    private final LatencyHistogram update = new LatencyHistogram();
+
+    private volatile UpdateCoalescer coalescer;
+
+    LoaderMetrics() {
+    }
+
+    // ---------- recording ---------------------------------------------------
+
+    void read(long bundleId, String file, int bytes) {
+        totals.bytesRead.addAndGet(bytes);
+        getCounters(bundles, new Long(bundleId)).bytesRead.addAndGet(bytes);
+        getCounters(files, file).bytesRead.addAndGet(bytes);
+    }
+
+    void parsed(long bundleId, String file, long nanos) {
+        parse.record(nanos);
+        totals.filesParsed.incrementAndGet();
+        getCounters(bundles, new Long(bundleId)).filesParsed.incrementAndGet();
+        getCounters(files, file).filesParsed.incrementAndGet();
+    }
+
+    void substituted(long nanos) {
+        substitution.record(nanos);
+    }
+
+    void lookedUp(long nanos) {
+        lookup.record(nanos);
+    }
+
+    void updated(long bundleId, String file, long nanos) {
+        update.record(nanos);
+        totals.updatesApplied.incrementAndGet();
+        getCounters(bundles, new Long(bundleId)).updatesApplied.incrementAndGet();
+        getCounters(files, file).updatesApplied.incrementAndGet();
+    }
+
+    void skipped(long bundleId, String file) {
+        totals.updatesSkipped.incrementAndGet();
+        getCounters(bundles, new Long(bundleId)).updatesSkipped.incrementAndGet();
+        getCounters(files, file).updatesSkipped.incrementAndGet();
+    }
+
+    void failed(long bundleId, String file) {
+        totals.failures.incrementAndGet();
+        getCounters(bundles, new Long(bundleId)).failures.incrementAndGet();
+        getCounters(files, file).failures.incrementAndGet();
+    }
+
+    void retried(long bundleId, String file) {
+        totals.retries.incrementAndGet();
+        getCounters(bundles, new Long(bundleId)).retries.incrementAndGet();
+        getCounters(files, file).retries.incrementAndGet();
+    }
+
+    void setCoalescer(UpdateCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    private static Counters getCounters(ConcurrentMap map, Object key) {
+        Counters counters = (Counters) map.get(key);
+        if (counters == null) {
+            Counters created = new Counters();
+            counters = (Counters) map.putIfAbsent(key, created);
+            if (counters == null) {
+                counters = created;
+            }
+        }
+        return counters;
+    }
+
+    // ---------- LoaderMetricsMBean -------------------------------------------
+
+    public long getFilesParsed() {
+        return totals.filesParsed.get();
+    }
+
+    public long getBytesRead() {
+        return totals.bytesRead.get();
+    }
+
+    public long getUpdatesApplied() {
+        return totals.updatesApplied.get();
+    }
+
+    public long getUpdatesSkipped() {
+        return totals.updatesSkipped.get();
+    }
+
+    public long getFailures() {
+        return totals.failures.get();
+    }
+
+    public long getRetries() {
+        return totals.retries.get();
+    }
+
+    public long getCollapsedUpdates() {
+        UpdateCoalescer coalescer = this.coalescer;
+        return coalescer == null ? 0 : coalescer.getCollapsed();
+    }
+
+    public String getParseLatency() {
+        return parse.toString();
+    }
+
+    public String getSubstitutionLatency() {
+        return substitution.toString();
+    }
+
+    public String getLookupLatency() {
+        return lookup.toString();
+    }
+
+    public String getUpdateLatency() {
+        return update.toString();
+    }
+
+    public long[] getHistogram(String phase) {
+        LatencyHistogram histogram = getLatencyHistogram(phase);
+        return histogram == null ? null : histogram.getBuckets();
+    }
+
+    LatencyHistogram getLatencyHistogram(String phase) {
+        if (PARSE.equals(phase)) {
+            return parse;
+        } else if (SUBSTITUTION.equals(phase)) {
+            return substitution;
+        } else if (LOOKUP.equals(phase)) {
+            return lookup;
+        } else if (UPDATE.equals(phase)) {
+            return update;
+        }
+        return null;
+    }
+
+    public String[] getBundleStatistics() {
+        return toStrings(bundles);
+    }
+
+    public String[] getFileStatistics() {
+        return toStrings(files);
+    }
+
+    private static String[] toStrings(Map map) {
+        List lines = new ArrayList(map.size());
+        for (Iterator ei = map.entrySet().iterator(); ei.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) ei.next();
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return (String[]) lines.toArray(new String[lines.size()]);
+    }
+
+    public void reset() {
+        totals.reset();
+        bundles.clear();
+        files.clear();
+        parse.reset();
+        substitution.reset();
+        lookup.reset();
+        update.reset();
+    }
+
+    public String toString() {
+        return totals + ", collapsed=" + getCollapsedUpdates() + "; parse " + parse + "; substitution "
+                + substitution + "; lookup " + lookup + "; update " + update;
+    }
+
+    private static final class Counters {
+
+        private final AtomicLong filesParsed = new AtomicLong();
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong updatesApplied = new AtomicLong();
+        private final AtomicLong updatesSkipped = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+
+        void reset() {
+            filesParsed.set(0);
+            bytesRead.set(0);
+            updatesApplied.set(0);
+            updatesSkipped.set(0);
+            failures.set(0);
+            retries.set(0);
+        }
+
+        public String toString() {
+            return "parsed=" + filesParsed + ", bytes=" + bytesRead + ", applied=" + updatesApplied
+                    + ", skipped=" + updatesSkipped + ", failures=" + failures + ", retries=" + retries;
+        }
+    }
+}
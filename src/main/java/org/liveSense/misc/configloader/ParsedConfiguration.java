@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.net.URL;
+import java.util.Dictionary;
+import java.util.Set;
+
+/**
+ * A configuration file which has been read and parsed, but not yet applied
+ * to the <code>ConfigurationAdmin</code>.
+ */
+class ParsedConfiguration {
+
+    /** The file the configuration was read from. */
+    private final URL url;
+
+    /** The decoded name of the file. */
+    private final String name;
+
+    private final String pid;
+    private final String factoryPid;
+
+    /** The parsed properties. */
+    private final Dictionary properties;
+
+    /** The names of the macros which could not be resolved. */
+    private final Set unresolved;
+
+    /** Whether the configuration is deleted with the bundle it came from. */
+    private volatile boolean uninstall;
+
+    /** The fingerprint of the properties, computed on first use. */
+    private volatile String fingerprint;
+
+    ParsedConfiguration(URL url, String name, String pid, String factoryPid, Dictionary properties, Set unresolved) {
+        this.url = url;
+        this.name = name;
+        this.pid = pid;
+        this.factoryPid = factoryPid;
+        this.properties = properties;
+        this.unresolved = unresolved;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public String getFactoryPid() {
+        return factoryPid;
+    }
+
+    public Dictionary getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return The fingerprint of the properties, see
+     *         {@link Util#fingerprint(Dictionary)}.
+     */
+    public String getFingerprint() {
+        String result = fingerprint;
+        if (result == null) {
+            result = Util.fingerprint(properties);
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return <code>true</code> if the configuration is deleted when the
+     *         bundle it came from stops, see
+     *         {@link PathEntry#isUninstall()}.
+     */
+    public boolean isUninstall() {
+        return uninstall;
+    }
+
+    public void setUninstall(boolean uninstall) {
+        this.uninstall = uninstall;
+    }
+
+    public Set getUnresolved() {
+        return unresolved;
+    }
+
+    /**
+     * @return <code>true</code> if every macro of the configuration could be
+     *         resolved.
+     */
+    public boolean isValid() {
+        return unresolved.isEmpty();
+    }
+}
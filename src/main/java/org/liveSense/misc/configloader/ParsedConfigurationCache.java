@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the parsed content of the configuration files, so reading the
+ * configuration of a restarted or refreshed bundle again needs neither I/O
+ * nor parsing.
+ * <p>
+ * An entry is found by bundle id and entry path, and is only used while the
+ * last modification time of the bundle is the one it was read with. The
+ * parsed content itself is shared by the entries with the same content
+ * hash, so a file shipped by several bundles is kept once. Both maps are
+ * bounded and evict the least recently used entries.
+ * <p>
+ * The cached dictionaries hold the content as read, before the macros are
+ * resolved, and are never handed out: callers get a copy they may modify.
+ */
+class ParsedConfigurationCache {
+
+    /** bundle id and path to Entry, guarded by this */
+    private final Map entries;
+
+    /** content hash to the parsed Dictionary, guarded by this */
+    private final Map contents;
+
+    private long hits;
+    private long sharedHits;
+    private long misses;
+
+    ParsedConfigurationCache(int maxEntries) {
+        this.entries = new LruMap(maxEntries);
+        this.contents = new LruMap(maxEntries);
+    }
+
+    /**
+     * Returns the cached content of a file.
+     *
+     * @param bundleId The bundle the file belongs to.
+     * @param lastModified The current last modification time of the bundle.
+     * @param path The entry path of the file.
+     * @return A copy of the content or <code>null</code> if the file is not
+     *         cached or the bundle changed since.
+     */
+    public synchronized Dictionary get(long bundleId, long lastModified, String path) {
+        Entry entry = (Entry) entries.get(getKey(bundleId, path));
+        if (entry == null || entry.lastModified != lastModified) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return copy(entry.content);
+    }
+
+    /**
+     * Returns the content parsed from a file with the given content hash,
+     * whichever bundle it came from.
+     *
+     * @param contentKey The content hash.
+     * @return A copy of the content or <code>null</code>.
+     */
+    public synchronized Dictionary getContent(String contentKey) {
+        Dictionary content = (Dictionary) contents.get(contentKey);
+        if (content == null) {
+            return null;
+        }
+        sharedHits++;
+        return copy(content);
+    }
+
+    /**
+     * Caches the content of a file. The dictionary is copied, the caller
+     * keeps using its own.
+     *
+     * @param bundleId The bundle the file belongs to.
+     * @param lastModified The last modification time of the bundle.
+     * @param path The entry path of the file.
+     * @param contentKey The content hash.
+     * @param content The content as read.
+     */
+    public synchronized void put(long bundleId, long lastModified, String path, String contentKey,
+            Dictionary content) {
+        Dictionary shared = (Dictionary) contents.get(contentKey);
+        if (shared == null) {
+            shared = copy(content);
+            contents.put(contentKey, shared);
+        }
+        entries.put(getKey(bundleId, path), new Entry(lastModified, shared));
+    }
+
+    /**
+     * Drops the entries of a bundle.
+     *
+     * @param bundleId The bundle id.
+     */
+    public synchronized void invalidate(long bundleId) {
+        String prefix = bundleId + ":";
+        for (Iterator ei = entries.keySet().iterator(); ei.hasNext(); ) {
+            if (((String) ei.next()).startsWith(prefix)) {
+                ei.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized String toString() {
+        return "ParsedConfigurationCache[entries=" + entries.size() + ", contents=" + contents.size()
+                + ", hits=" + hits + ", sharedHits=" + sharedHits + ", misses=" + misses + "]";
+    }
+
+    private static String getKey(long bundleId, String path) {
+        return bundleId + ":" + path;
+    }
+
+    private static Dictionary copy(Dictionary content) {
+        Hashtable copy = new Hashtable(content.size() * 2);
+        for (Enumeration e = content.keys(); e.hasMoreElements(); ) {
+            Object key = e.nextElement();
+            copy.put(key, content.get(key));
+        }
+        return copy;
+    }
+
+    private static final class Entry {
+
+        private final long lastModified;
+        private final Dictionary content;
+
+        Entry(long lastModified, Dictionary content) {
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+
+    /**
+     * A <code>LinkedHashMap</code> in access order dropping the least
+     * recently used entry above its capacity.
+     */
+    private static final class LruMap extends LinkedHashMap {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        LruMap(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
@@ -19,7 +19,7 @@
 package org.liveSense.misc.configloader;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Enumeration;
 import java.util.List;
 import org.liveSense.misc.configloader.ManifestHeader.Entry;
 
@@ -48,6 +48,24 @@ public class PathEntry {
      */
     public static final String PATH_DIRECTIVE = "path";
 
+    /**
+     * The recursive directive specifying if the configurations are searched
+     * in the subdirectories of the path as well.
+     */
+    public static final String RECURSIVE_DIRECTIVE = "recursive";
+
+    /**
+     * The pattern directive selecting the files of the path, with
+     * <code>*</code> matching any sequence of characters.
+     */
+    public static final String PATTERN_DIRECTIVE = "pattern";
+
+    /**
+     * The default pattern, matching both <code>.cfg</code> and
+     * <code>.config</code> files.
+     */
+    public static final String DEFAULT_PATTERN = "*.c*g";
+
     /** The path for the initial configuration. */
     private final String path;
 
@@ -57,11 +75,22 @@ public class PathEntry {
     /** Should existing content be uninstalled? */
     private final boolean uninstall;
 
+    /** Should the subdirectories be searched? */
+    private final boolean recursive;
+
+    /** The pattern of the file names. */
+    private final String pattern;
 
-    public static Iterator getContentPaths(final Bundle bundle) {
+
+    /**
+     * Parses the value of the configuration header.
+     *
+     * @param root The header value, may be <code>null</code>.
+     * @return The list of path entries or <code>null</code> if there is none.
+     */
+    public static List parse(final String root) {
         final List entries = new ArrayList();
 
-        final String root = (String) bundle.getHeaders().get(CONFIGURATION_HEADER);
         if (root != null) {
             final ManifestHeader header = ManifestHeader.parse(root);
             Entry[] all_entries = header.getEntries();
@@ -73,7 +102,7 @@ public class PathEntry {
         if (entries.size() == 0) {
             return null;
         }
-        return entries.iterator();
+        return entries;
     }
 
     public PathEntry(ManifestHeader.Entry entry) {
@@ -97,6 +126,21 @@ public class PathEntry {
             this.uninstall = this.overwrite;
         }
 
+        // recursive directive
+        final String recursiveValue = entry.getDirectiveValue(RECURSIVE_DIRECTIVE);
+        if (recursiveValue != null) {
+            this.recursive = Boolean.valueOf(recursiveValue).booleanValue();
+        } else {
+            this.recursive = false;
+        }
+
+        // pattern directive
+        final String patternValue = entry.getDirectiveValue(PATTERN_DIRECTIVE);
+        if (patternValue != null) {
+            this.pattern = patternValue;
+        } else {
+            this.pattern = DEFAULT_PATTERN;
+        }
 
     }
 
@@ -111,4 +155,24 @@ public class PathEntry {
     public boolean isUninstall() {
         return this.uninstall;
     }
+
+    public boolean isRecursive() {
+        return this.recursive;
+    }
+
+    public String getPattern() {
+        return this.pattern;
+    }
+
+    /**
+     * Finds the files of this path in the bundle and its fragments with a
+     * single <code>Bundle.findEntries</code> call.
+     *
+     * @param bundle The bundle.
+     * @return An enumeration of the <code>URL</code>s of the matching
+     *         entries, or <code>null</code> if there is none.
+     */
+    public Enumeration findEntries(final Bundle bundle) {
+        return bundle.findEntries(this.path, this.pattern, this.recursive);
+    }
 }
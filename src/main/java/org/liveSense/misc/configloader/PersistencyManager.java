@@ -19,24 +19,110 @@
 package org.liveSense.misc.configloader;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
+/**
+ * Keeps named configurations, the backups of the configurations the loader
+ * overwrote, in an append-only journal.
+ * <p>
+ * Every change is one record appended to the journal: the length, a CRC32
+ * and the name followed by the configuration in the binary format, or the
+ * deletion of a name. The journal is read once, when the manager is first
+ * used; afterwards everything is served from memory. A record torn by a
+ * crash fails its length or checksum check and is cut off with everything
+ * after it.
+ * <p>
+ * The appends are synced to disk in groups: the first change after a sync
+ * schedules the next one after the commit delay, the changes in between
+ * share it. When the records of deleted and replaced entries take more than
+ * half of the journal, it is compacted: the live entries are written to a
+ * temporary file which then replaces the journal.
+ */
 public class PersistencyManager {
 
+    private static final String FILE_NAME = "backups.journal";
+
+    /** "CLBJ" */
+    private static final int MAGIC = 0x434c424a;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_LENGTH = 8;
+
+    /** The size of the length and the checksum in front of a record. */
+    private static final int RECORD_OVERHEAD = 8;
+
+    private static final byte OP_STORE = 1;
+    private static final byte OP_DELETE = 2;
+
+    /** A journal below this size is not compacted. */
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+
     private final File m_root;
+    private final File m_journal;
+    private final ScheduledExecutorService m_executor;
+    private final long m_commitDelay;
 
+    /** name to the encoded configuration, null until opened, guarded by this */
+    private Map m_entries;
+
+    /** the immutable view returned by loadAll, null after a change, guarded by this */
+    private Map m_all;
+
+    /** the length of the records of the live entries, guarded by this */
+    private long m_liveLength;
+
+    /** the length of the journal, guarded by this */
+    private long m_length;
+
+    private FileOutputStream m_file;
+    private OutputStream m_out;
+    private boolean m_dirty;
+    private boolean m_syncScheduled;
+
+    /**
+     * Creates a manager keeping its journal in the working directory and
+     * syncing every change immediately.
+     */
     public PersistencyManager() {
-        m_root = new File(System.getProperty("user.dir"));
+        this(new File(System.getProperty("user.dir")), null, 0);
+    }
+
+    /**
+     * @param root The directory of the journal, created if missing.
+     * @param executor Runs the group commits; <code>null</code> syncs every
+     *            change immediately.
+     * @param commitDelay The time in milliseconds a change may wait for the
+     *            sync.
+     */
+    public PersistencyManager(File root, ScheduledExecutorService executor, long commitDelay) {
+        m_root = root;
+        m_journal = new File(root, FILE_NAME);
+        m_executor = executor;
+        m_commitDelay = commitDelay;
     }
 
     /**
@@ -46,98 +132,377 @@ public class PersistencyManager {
      * @param configs List representing the specified resource.
      * @throws IOException If the resource could not be stored.
      */
-    public void store(String name, Dictionary configs) throws IOException {
+    public synchronized void store(String name, Dictionary configs) throws IOException {
         if (configs == null || configs.isEmpty()) {
             return;
         }
-        File targetDir = m_root;
-        name = name.replaceAll("/", File.separator);
-        if (name.startsWith(File.separator)) {
-            name = name.substring(1);
-        }
+        open();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        BinaryConfigurationHandler.write(content, configs);
+        byte[] encoded = content.toByteArray();
+        int length = append(OP_STORE, name, encoded);
+        m_all = null;
+        Entry previous = (Entry) m_entries.put(name, new Entry(encoded, length));
+        m_liveLength += length - (previous == null ? 0 : previous.length);
+        requestSync();
+    }
 
-        int lastSeparator = name.lastIndexOf(File.separator);
-        File target = null;
-        if (lastSeparator != -1) {
-            targetDir = new File(targetDir, name.substring(0, lastSeparator));
-            targetDir.mkdirs();
+    /**
+     * Deletes a resource. Deleting an unknown resource does nothing.
+     *
+     * @param name Name of the resource.
+     * @throws IOException If the resource could not be deleted.
+     */
+    public synchronized void delete(String name) throws IOException {
+        open();
+        Entry previous = (Entry) m_entries.remove(name);
+        if (previous != null) {
+            append(OP_DELETE, name, null);
+            m_all = null;
+            m_liveLength -= previous.length;
+            requestSync();
         }
-        target = new File(targetDir, name.substring(lastSeparator + 1));
+    }
 
-        Properties properties = new Properties();
-        Enumeration iter = configs.keys();
-        while (iter.hasMoreElements()) {
-            Object key = iter.nextElement();
-            properties.put(key, configs.get(key));
+    /**
+     * Checks whether a resource is stored, without decoding anything.
+     *
+     * @param name Name of the resource.
+     * @return <code>true</code> if the resource is stored.
+     * @throws IOException If the journal could not be read.
+     */
+    public synchronized boolean contains(String name) throws IOException {
+        open();
+        return m_entries.containsKey(name);
+    }
+
+    /**
+     * Loads a stored resource, decoding that one only.
+     *
+     * @param name Name of the resource.
+     * @return List the specified resource, if the resource is unknown an empty list is returned.
+     * @throws IOException If the resource could not be properly read.
+     */
+    public synchronized Dictionary load(String name) throws IOException {
+        open();
+        Entry entry = (Entry) m_entries.get(name);
+        if (entry == null) {
+            return new Hashtable();
         }
+        return entry.decode();
+    }
 
-        properties.store(new FileOutputStream(target),null);
+    /**
+     * Loads all stored resources. The journal is read once; the map is
+     * built on the first call after a change and shared until the next
+     * change, so it can be consulted for every configuration without
+     * going to the file system. Every entry is decoded once, rebuilding the
+     * map after a change only decodes the changed entry. To look up single
+     * resources {@link #contains(String)} and {@link #load(String)} are
+     * cheaper still.
+     *
+     * @return An immutable map containing all persisted resources which is
+     *         typed <String, Dictionary>; the dictionaries cannot be
+     *         modified either.
+     * @throws IOException If not all resources could be loaded.
+     */
+    public synchronized Map loadAll() throws IOException {
+        open();
+        if (m_all == null) {
+            Map all = new HashMap(m_entries.size() * 2);
+            for (Iterator ei = m_entries.entrySet().iterator(); ei.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) ei.next();
+                all.put(entry.getKey(), ((Entry) entry.getValue()).getView());
+            }
+            m_all = Collections.unmodifiableMap(all);
+        }
+        return m_all;
     }
 
     /**
-     * Deletes a resource.
+     * Writes the pending changes to disk, compacting the journal if most
+     * of it is garbage.
      *
-     * @param name Name of the resource.
-     * @throws IOException If the resource could not be deleted.
+     * @throws IOException If the journal cannot be written.
      */
-    public void delete(String name) throws IOException {
-        name = name.replace('/', File.separatorChar);
-        File target = new File(m_root, name);
-        if (!target.delete()) {
-            throw new IOException("Unable to delete file: " + target.getAbsolutePath());
+    public synchronized void sync() throws IOException {
+        m_syncScheduled = false;
+        if (m_out == null || !m_dirty) {
+            return;
         }
-        while (target.getParentFile().list().length == 0 && !target.getParentFile().getAbsolutePath().equals(m_root.getAbsolutePath())) {
-            target = target.getParentFile();
-            target.delete();
+        m_out.flush();
+        m_file.getFD().sync();
+        m_dirty = false;
+        if (m_length > COMPACT_THRESHOLD && m_length > 2 * (m_liveLength + HEADER_LENGTH)) {
+            compact();
         }
     }
 
     /**
-     * Loads a stored resource.
+     * Syncs the pending changes and closes the journal. It is opened again
+     * when the manager is used.
      *
-     * @param name Name of the resource.
-     * @return List the specified resource, if the resource is unknown an empty list is returned.
-     * @throws IOException If the resource could not be properly read.
+     * @throws IOException If the journal cannot be written.
+     */
+    public synchronized void close() throws IOException {
+        if (m_out == null) {
+            return;
+        }
+        try {
+            sync();
+        } finally {
+            m_out.close();
+            m_out = null;
+            m_file = null;
+            m_entries = null;
+            m_all = null;
+        }
+    }
+
+    /**
+     * Reads the journal on first use, and opens it for appending.
      */
-    public Dictionary load(String name) throws IOException {
-        name = name.replaceAll("/", File.separator);
-        Dictionary resources = new Hashtable();
-        File resourcesFile = new File(m_root, name);
-
-        if (resourcesFile.exists()) {
-            Properties p = new Properties();
-            InputStream in = new BufferedInputStream(new FileInputStream(resourcesFile));
-            try
-            {
-                in.mark(1);
-                boolean isXml = in.read() == '<';
-                in.reset();
-                if (isXml) {
-                    p.loadFromXML(in);
-                } else {
-                    p.load(in);
+    private void open() throws IOException {
+        if (m_entries != null) {
+            return;
+        }
+        Map entries = new LinkedHashMap();
+        long live = 0;
+        long valid = 0;
+        if (m_journal.isFile()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_journal)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a journal of the configuration loader: " + m_journal);
                 }
-            }
-            finally
-            {
+                valid = HEADER_LENGTH;
+                long available = m_journal.length() - HEADER_LENGTH;
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 0 || length > available - RECORD_OVERHEAD) {
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+                    byte op = data.readByte();
+                    String name = data.readUTF();
+                    Entry previous;
+                    if (op == OP_STORE) {
+                        byte[] encoded = new byte[data.available()];
+                        data.readFully(encoded);
+                        previous = (Entry) entries.put(name, new Entry(encoded, RECORD_OVERHEAD + length));
+                        live += RECORD_OVERHEAD + length;
+                    } else {
+                        previous = (Entry) entries.remove(name);
+                    }
+                    if (previous != null) {
+                        live -= previous.length;
+                    }
+                    valid += RECORD_OVERHEAD + length;
+                    available -= RECORD_OVERHEAD + length;
+                }
+            } catch (EOFException eof) {
+                // the end of the journal, or a torn record
+            } finally {
                 in.close();
             }
-            Util.performSubstitution(p);
+            if (valid < m_journal.length()) {
+                // drop the torn tail, the next append must not follow garbage
+                RandomAccessFile raf = new RandomAccessFile(m_journal, "rw");
+                try {
+                    raf.setLength(valid);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
 
-            Hashtable ht = new Hashtable();
-            ht.putAll(p);
-            return ht;
+        if (valid == 0) {
+            m_root.mkdirs();
+            writeJournal(m_journal, entries);
+            valid = HEADER_LENGTH;
         }
-        return resources;
+        m_file = new FileOutputStream(m_journal, true);
+        m_out = new BufferedOutputStream(m_file);
+        m_entries = entries;
+        m_liveLength = live;
+        m_length = valid;
     }
 
     /**
-     * Loads all stored resources.
+     * Appends a record, the caller requests the sync once its state is
+     * updated.
      *
-     * @return A map containing all persisted resources which is typed <String, List>
-     * @throws IOException If not all resources could be loaded.
+     * @return The length of the record in the journal.
+     */
+    private int append(byte op, String name, byte[] encoded) throws IOException {
+        byte[] record = encode(op, name, encoded);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        DataOutputStream data = new DataOutputStream(m_out);
+        data.writeInt(record.length);
+        data.writeInt((int) crc.getValue());
+        data.write(record);
+        m_length += RECORD_OVERHEAD + record.length;
+        m_dirty = true;
+        return RECORD_OVERHEAD + record.length;
+    }
+
+    private static byte[] encode(byte op, String name, byte[] encoded) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buf);
+        data.writeByte(op);
+        data.writeUTF(name);
+        if (encoded != null) {
+            data.write(encoded);
+        }
+        data.flush();
+        return buf.toByteArray();
+    }
+
+    private void requestSync() throws IOException {
+        if (m_syncScheduled) {
+            return;
+        }
+        if (m_executor != null) {
+            try {
+                m_executor.schedule(new Runnable() {
+                    public void run() {
+                        synchronized (PersistencyManager.this) {
+                            try {
+                                sync();
+                            } catch (IOException ioe) {
+                                // the changes are synced with the next one or on close
+                                m_dirty = true;
+                            }
+                        }
+                    }
+                }, m_commitDelay, TimeUnit.MILLISECONDS);
+                m_syncScheduled = true;
+                return;
+            } catch (RejectedExecutionException ree) {
+                // shutting down, sync now
+            }
+        }
+        sync();
+    }
+
+    /**
+     * Rewrites the journal with the live entries only.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(m_journal.getPath() + ".tmp");
+        long length = writeJournal(tmp, m_entries);
+
+        m_out.close();
+        // renameTo does not replace an existing file on every platform
+        boolean replaced = tmp.renameTo(m_journal) || (m_journal.delete() && tmp.renameTo(m_journal));
+        m_file = new FileOutputStream(m_journal, true);
+        m_out = new BufferedOutputStream(m_file);
+        if (!replaced) {
+            // keep appending to the journal as it is
+            tmp.delete();
+            throw new IOException("Cannot replace " + m_journal);
+        }
+        m_length = length;
+        m_liveLength = length - HEADER_LENGTH;
+    }
+
+    /**
+     * Writes a journal holding the given entries and syncs it.
+     *
+     * @return The length of the journal.
+     */
+    private static long writeJournal(File file, Map entries) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            CRC32 crc = new CRC32();
+            for (Iterator ei = entries.entrySet().iterator(); ei.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) ei.next();
+                byte[] record = encode(OP_STORE, (String) entry.getKey(), ((Entry) entry.getValue()).encoded);
+                crc.reset();
+                crc.update(record);
+                data.writeInt(record.length);
+                data.writeInt((int) crc.getValue());
+                data.write(record);
+            }
+            data.flush();
+            out.getFD().sync();
+            return data.size();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static final class Entry {
+
+        /** the configuration in the binary format */
+        private final byte[] encoded;
+
+        /** the length of the record in the journal */
+        private final int length;
+
+        /** the decoded, read only configuration, guarded by the manager */
+        private Dictionary view;
+
+        Entry(byte[] encoded, int length) {
+            this.encoded = encoded;
+            this.length = length;
+        }
+
+        Dictionary decode() throws IOException {
+            return BinaryConfigurationHandler.read(new ByteArrayInputStream(encoded));
+        }
+
+        Dictionary getView() throws IOException {
+            if (view == null) {
+                view = new ReadOnlyDictionary(decode());
+            }
+            return view;
+        }
+    }
+
+    /**
+     * A <code>Hashtable</code> which cannot be changed after it has been
+     * filled.
      */
-    public Map loadAll() throws IOException {
-        return new HashMap();
+    private static final class ReadOnlyDictionary extends Hashtable {
+
+        private static final long serialVersionUID = 1L;
+
+        ReadOnlyDictionary(Dictionary content) {
+            super(content.size() * 2);
+            for (Enumeration e = content.keys(); e.hasMoreElements(); ) {
+                Object key = e.nextElement();
+                super.put(key, content.get(key));
+            }
+        }
+
+        public synchronized Object put(Object key, Object value) {
+            throw new UnsupportedOperationException("read only");
+        }
+
+        public synchronized Object remove(Object key) {
+            throw new UnsupportedOperationException("read only");
+        }
+
+        public synchronized void putAll(Map t) {
+            throw new UnsupportedOperationException("read only");
+        }
+
+        public synchronized void clear() {
+            throw new UnsupportedOperationException("read only");
+        }
     }
 }
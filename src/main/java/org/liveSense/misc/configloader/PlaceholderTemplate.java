@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A value with <tt>${&lt;prop-name&gt;}</tt> placeholders, compiled into a
+ * sequence of literal text and variable boundaries.
+ * <p>
+ * A placeholder is enclosed by an <code>OPEN</code> and a
+ * <code>CLOSE</code> operation, everything in between produces the name of
+ * the variable, so nested placeholders like <tt>${foo.${bar}}</tt> need no
+ * special handling. A <tt>${</tt> which is never closed is kept as literal
+ * text. Templates are immutable and cached by their raw string.
+ */
+final class PlaceholderTemplate {
+
+    private static final String DELIM_START = "${";
+    private static final char DELIM_STOP = '}';
+
+    private static final int LITERAL = 0;
+    private static final int OPEN = 1;
+    private static final int CLOSE = 2;
+
+    /** Above this number of cached templates the cache is dropped. */
+    private static final int MAX_CACHED = 1024;
+
+    private static final Map CACHE = new ConcurrentHashMap();
+
+    /** The operations, <code>LITERAL</code> ones refer to the text. */
+    private final int[] ops;
+    private final String[] text;
+
+    private PlaceholderTemplate(int[] ops, String[] text) {
+        this.ops = ops;
+        this.text = text;
+    }
+
+    /**
+     * Returns the compiled template of a value.
+     *
+     * @param val The raw value.
+     * @return The template or <code>null</code> if the value has no
+     *         placeholder at all.
+     */
+    public static PlaceholderTemplate compile(String val) {
+        if (val.indexOf(DELIM_START) < 0) {
+            return null;
+        }
+        PlaceholderTemplate template = (PlaceholderTemplate) CACHE.get(val);
+        if (template == null) {
+            template = parse(val);
+            if (CACHE.size() >= MAX_CACHED) {
+                CACHE.clear();
+            }
+            CACHE.put(val, template);
+        }
+        return template;
+    }
+
+    private static PlaceholderTemplate parse(String val) {
+        int length = val.length();
+        int[] ops = new int[8];
+        String[] text = new String[8];
+        int count = 0;
+
+        // op indexes of the placeholders not closed yet
+        int[] open = new int[4];
+        int depth = 0;
+
+        int literal = 0;
+        int i = 0;
+        while (i < length) {
+            char c = val.charAt(i);
+            boolean start = c == '$' && i + 1 < length && val.charAt(i + 1) == '{';
+            boolean stop = c == DELIM_STOP && depth > 0;
+            if (!start && !stop) {
+                i++;
+                continue;
+            }
+
+            if (count + 2 > ops.length) {
+                ops = grow(ops, ops.length * 2);
+                String[] newText = new String[ops.length];
+                System.arraycopy(text, 0, newText, 0, count);
+                text = newText;
+            }
+            if (literal < i) {
+                ops[count] = LITERAL;
+                text[count++] = val.substring(literal, i);
+            }
+            if (start) {
+                if (depth == open.length) {
+                    open = grow(open, depth * 2);
+                }
+                open[depth++] = count;
+                ops[count++] = OPEN;
+                i += DELIM_START.length();
+            } else {
+                depth--;
+                ops[count++] = CLOSE;
+                i++;
+            }
+            literal = i;
+        }
+        if (literal < length) {
+            if (count == ops.length) {
+                ops = grow(ops, count + 1);
+                String[] newText = new String[ops.length];
+                System.arraycopy(text, 0, newText, 0, count);
+                text = newText;
+            }
+            ops[count] = LITERAL;
+            text[count++] = val.substring(literal);
+        }
+
+        // a placeholder which is never closed is plain text
+        while (depth > 0) {
+            int op = open[--depth];
+            ops[op] = LITERAL;
+            text[op] = DELIM_START;
+        }
+
+        int[] compiledOps = new int[count];
+        String[] compiledText = new String[count];
+        System.arraycopy(ops, 0, compiledOps, 0, count);
+        System.arraycopy(text, 0, compiledText, 0, count);
+        return new PlaceholderTemplate(compiledOps, compiledText);
+    }
+
+    private static int[] grow(int[] array, int size) {
+        int[] grown = new int[size];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Resolves the placeholders. A variable is looked up in the
+     * configuration properties first, then in the system properties, an
+     * unknown variable is replaced by the empty string. The value of a
+     * variable is resolved as well before it is inserted.
+     *
+     * @param currentKey The key of the property being evaluated.
+     * @param cycleMap Further variables which must not be referenced, may
+     *        be <code>null</code>.
+     * @param configProps The configuration properties, may be
+     *        <code>null</code>.
+     * @return The resolved value.
+     * @throws IllegalArgumentException If a variable refers to itself,
+     *         directly or through other variables.
+     */
+    public String resolve(String currentKey, Map cycleMap, Dictionary configProps)
+            throws IllegalArgumentException {
+        return resolve(currentKey, cycleMap, configProps, null, null);
+    }
+
+    /**
+     * Resolves the placeholders against a snapshot of the system
+     * properties. A variable is looked up in the system properties first,
+     * then in the configuration properties. A variable found in neither, or
+     * referring to itself, is replaced by the empty string and reported.
+     *
+     * @param currentKey The key of the property being evaluated.
+     * @param configProps The configuration properties.
+     * @param system The system properties.
+     * @param unresolved Collects the names of the variables which could not
+     *        be resolved.
+     * @return The resolved value.
+     */
+    public String resolve(String currentKey, Dictionary configProps, Properties system, Set unresolved) {
+        return resolve(currentKey, null, configProps, system, unresolved);
+    }
+
+    private String resolve(String currentKey, Map cycleMap, Dictionary configProps, Properties system,
+            Set unresolved) {
+        StringBuilder buf = new StringBuilder();
+
+        // the templates being resolved with their position, a variable
+        // value is resolved by pushing its template on top
+        List frames = new ArrayList();
+        frames.add(new Frame(this, currentKey));
+
+        // buffer offsets where the names of the open placeholders start
+        int[] starts = new int[4];
+        int depth = 0;
+
+        while (!frames.isEmpty()) {
+            Frame frame = (Frame) frames.get(frames.size() - 1);
+            if (frame.pc == frame.template.ops.length) {
+                frames.remove(frames.size() - 1);
+                continue;
+            }
+
+            int pc = frame.pc++;
+            switch (frame.template.ops[pc]) {
+            case LITERAL:
+                buf.append(frame.template.text[pc]);
+                break;
+            case OPEN:
+                if (depth == starts.length) {
+                    starts = grow(starts, depth * 2);
+                }
+                starts[depth++] = buf.length();
+                break;
+            default:
+                int start = starts[--depth];
+                String variable = buf.substring(start);
+                buf.setLength(start);
+
+                // Verify that this is not a recursive variable reference.
+                if ((cycleMap != null && cycleMap.get(variable) != null) || isActive(frames, variable)) {
+                    if (unresolved == null) {
+                        throw new IllegalArgumentException("recursive variable reference: " + variable);
+                    }
+                    unresolved.add(variable);
+                    break;
+                }
+
+                String substValue = (system == null)
+                        ? lookup(variable, configProps)
+                        : lookup(variable, configProps, system, unresolved);
+
+                PlaceholderTemplate nested = compile(substValue);
+                if (nested == null) {
+                    buf.append(substValue);
+                } else {
+                    frames.add(new Frame(nested, variable));
+                }
+            }
+        }
+        return buf.toString();
+    }
+
+    private static String lookup(String variable, Dictionary configProps) {
+        // Try to configuration properties first.
+        String substValue = (String) ((configProps != null) ? configProps.get(variable) : null);
+        if (substValue == null) {
+            // Ignore unknown property values.
+            substValue = System.getProperty(variable, "");
+        }
+        return substValue;
+    }
+
+    private static String lookup(String variable, Dictionary configProps, Properties system, Set unresolved) {
+        String substValue = system.getProperty(variable);
+        if (substValue == null) {
+            Object value = configProps.get(variable);
+            if (value instanceof String) {
+                substValue = (String) value;
+            } else {
+                unresolved.add(variable);
+                substValue = "";
+            }
+        }
+        return substValue;
+    }
+
+    private static boolean isActive(List frames, String variable) {
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            if (variable.equals(((Frame) frames.get(i)).variable)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class Frame {
+
+        private final PlaceholderTemplate template;
+
+        /** The variable whose value the template is, or the property key. */
+        private final String variable;
+
+        private int pc;
+
+        Frame(PlaceholderTemplate template, String variable) {
+            this.template = template;
+            this.variable = variable;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers which bundle provided which configuration, so the
+ * configurations of a stopped bundle can be deleted without reading the
+ * bundle again.
+ * <p>
+ * A configuration is known by its loader name. Several bundles may provide
+ * the same configuration; it is deleted with the last of them, and only if
+ * the path entry of that bundle has the <code>uninstall:=true</code>
+ * directive.
+ */
+class ProvenanceIndex {
+
+    /** bundle id to the Set of names provided, guarded by this */
+    private final Map namesByBundle = new HashMap();
+
+    /** bundle id to the Set of names to delete with the bundle, guarded by this */
+    private final Map uninstallByBundle = new HashMap();
+
+    /** name to the Set of bundle ids providing it, guarded by this */
+    private final Map bundlesByName = new HashMap();
+
+    /**
+     * Records the configurations of a bundle, replacing what was recorded
+     * before.
+     *
+     * @param bundleId The bundle id.
+     * @param names The names of the configurations the bundle provides.
+     * @param uninstall The names to delete when the bundle stops, a subset
+     *            of the names.
+     */
+    public synchronized void put(long bundleId, Set names, Set uninstall) {
+        Long key = new Long(bundleId);
+        forget(key);
+        if (names.isEmpty()) {
+            return;
+        }
+        namesByBundle.put(key, names);
+        if (!uninstall.isEmpty()) {
+            uninstallByBundle.put(key, uninstall);
+        }
+        for (Iterator ni = names.iterator(); ni.hasNext(); ) {
+            Object name = ni.next();
+            Set bundles = (Set) bundlesByName.get(name);
+            if (bundles == null) {
+                bundles = new HashSet(2);
+                bundlesByName.put(name, bundles);
+            }
+            bundles.add(key);
+        }
+    }
+
+    /**
+     * Forgets a bundle.
+     *
+     * @param bundleId The bundle id.
+     * @return The names of the configurations to delete: those with the
+     *         uninstall directive which no other bundle provides.
+     */
+    public synchronized Set remove(long bundleId) {
+        Long key = new Long(bundleId);
+        Set uninstall = (Set) uninstallByBundle.get(key);
+        forget(key);
+        if (uninstall == null) {
+            return Collections.EMPTY_SET;
+        }
+        Set result = new HashSet(uninstall);
+        result.removeAll(bundlesByName.keySet());
+        return result;
+    }
+
+    private void forget(Long key) {
+        Set names = (Set) namesByBundle.remove(key);
+        uninstallByBundle.remove(key);
+        if (names == null) {
+            return;
+        }
+        for (Iterator ni = names.iterator(); ni.hasNext(); ) {
+            Object name = ni.next();
+            Set bundles = (Set) bundlesByName.get(name);
+            if (bundles != null && bundles.remove(key) && bundles.isEmpty()) {
+                bundlesByName.remove(name);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return namesByBundle.size();
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries the configurations which could not be applied, with an
+ * exponential backoff.
+ * <p>
+ * Only the failed configuration is retried, the rest of the bundle it came
+ * from is not touched again. A configuration waiting for the
+ * <code>ConfigurationAdmin</code> is retried until the service shows up,
+ * a failed update is given up after the configured number of attempts.
+ */
+class RetryScheduler {
+
+    /** The <code>ConfigurationAdmin</code> service is not available. */
+    public static final int CONFIGURATION_ADMIN_UNAVAILABLE = 1;
+
+    /** Applying the configuration failed. */
+    public static final int UPDATE_FAILED = 2;
+
+    private final ScheduledExecutorService executor;
+    private final ServiceMediator services;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int maxAttempts;
+
+    /** The deferred work by key, guarded by itself. */
+    private final Map pending = new HashMap();
+
+    RetryScheduler(ScheduledExecutorService executor, ServiceMediator services,
+            long initialDelay, long maxDelay, int maxAttempts) {
+        this.executor = executor;
+        this.services = services;
+        this.initialDelay = Math.max(1, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Schedules a retry. Deferring work under a key which is already pending
+     * replaces the pending work.
+     *
+     * @param bundleId The bundle the work belongs to.
+     * @param key Identifies the work within the bundle.
+     * @param reason Why the work is deferred.
+     * @param task The work; returns <code>Boolean.TRUE</code> when done,
+     *            <code>Boolean.FALSE</code> while the
+     *            <code>ConfigurationAdmin</code> is not available, and
+     *            throws if it failed.
+     */
+    public void defer(long bundleId, String key, int reason, Callable task) {
+        Deferred deferred = new Deferred(bundleId, key, task);
+        deferred.reason = reason;
+        if (reason == UPDATE_FAILED) {
+            deferred.failures = 1;
+        }
+        if (services.isDebugEnabled()) {
+            services.debug("Retrying {} of bundle {} later, {}", key, new Long(bundleId), describe(reason));
+        }
+        synchronized (pending) {
+            Deferred previous = (Deferred) pending.put(deferred.getKey(), deferred);
+            if (previous != null) {
+                previous.cancel();
+            }
+            schedule(deferred);
+        }
+    }
+
+    /**
+     * Drops the pending work of a bundle.
+     *
+     * @param bundleId The bundle id.
+     * @return The number of dropped retries.
+     */
+    public int cancel(long bundleId) {
+        int cancelled = 0;
+        synchronized (pending) {
+            for (Iterator di = pending.values().iterator(); di.hasNext(); ) {
+                Deferred deferred = (Deferred) di.next();
+                if (deferred.bundleId == bundleId) {
+                    deferred.cancel();
+                    di.remove();
+                    cancelled++;
+                }
+            }
+        }
+        return cancelled;
+    }
+
+    public int size() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Drops all pending work.
+     */
+    public void clear() {
+        synchronized (pending) {
+            for (Iterator di = pending.values().iterator(); di.hasNext(); ) {
+                ((Deferred) di.next()).cancel();
+            }
+            pending.clear();
+        }
+    }
+
+    // called with the pending lock held
+    private void schedule(Deferred deferred) {
+        long delay = initialDelay;
+        for (int i = 1; i < deferred.attempts && delay < maxDelay; i++) {
+            delay <<= 1;
+        }
+        try {
+            deferred.future = executor.schedule(deferred, Math.min(delay, maxDelay), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // shutting down
+            pending.remove(deferred.getKey());
+        }
+    }
+
+    private void run(Deferred deferred) {
+        synchronized (pending) {
+            if (pending.get(deferred.getKey()) != deferred) {
+                // replaced or cancelled meanwhile
+                return;
+            }
+        }
+
+        deferred.attempts++;
+        try {
+            if (Boolean.TRUE.equals(deferred.task.call())) {
+                synchronized (pending) {
+                    if (pending.get(deferred.getKey()) == deferred) {
+                        pending.remove(deferred.getKey());
+                    }
+                }
+                services.info("Applied {} of bundle {} after {} attempts", deferred.key, new Long(deferred.bundleId),
+                        new Integer(deferred.attempts));
+                return;
+            }
+            deferred.reason = CONFIGURATION_ADMIN_UNAVAILABLE;
+            services.debug("Still waiting to apply {} of bundle {}, {}", deferred.key, new Long(deferred.bundleId),
+                    describe(deferred.reason));
+        } catch (Throwable t) {
+            deferred.reason = UPDATE_FAILED;
+            deferred.failures++;
+            if (deferred.failures >= maxAttempts) {
+                synchronized (pending) {
+                    if (pending.get(deferred.getKey()) == deferred) {
+                        pending.remove(deferred.getKey());
+                    }
+                }
+                services.error("Giving up " + deferred.key + " of bundle " + deferred.bundleId
+                        + " after " + deferred.failures + " failed attempts", t);
+                return;
+            }
+            if (services.isWarnEnabled()) {
+                services.warn(ServiceMediator.format("Attempt {} to apply {} of bundle {} failed: {}",
+                        new Object[] { new Integer(deferred.attempts), deferred.key, new Long(deferred.bundleId), t }));
+            }
+        }
+
+        synchronized (pending) {
+            if (pending.get(deferred.getKey()) == deferred) {
+                schedule(deferred);
+            }
+        }
+    }
+
+    private static String describe(int reason) {
+        switch (reason) {
+        case CONFIGURATION_ADMIN_UNAVAILABLE:
+            return "ConfigurationAdmin is not available";
+        case UPDATE_FAILED:
+            return "update failed";
+        default:
+            return "reason " + reason;
+        }
+    }
+
+    private final class Deferred implements Runnable {
+
+        private final long bundleId;
+        private final String key;
+        private final Callable task;
+
+        private int reason;
+        private int attempts;
+        private int failures;
+        private ScheduledFuture future;
+
+        Deferred(long bundleId, String key, Callable task) {
+            this.bundleId = bundleId;
+            this.key = key;
+            this.task = task;
+        }
+
+        String getKey() {
+            return bundleId + ":" + key;
+        }
+
+        void cancel() {
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        public void run() {
+            RetryScheduler.this.run(this);
+        }
+    }
+}
@@ -16,10 +16,15 @@
  */
 package org.liveSense.misc.configloader;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.cm.ConfigurationAdmin;
 import org.osgi.service.log.LogService;
 import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 /**
  * Implements a mediator pattern class for services from the OSGi container.
@@ -28,22 +33,43 @@ class ServiceMediator {
     public static long WAIT_UNLIMITED = 0;
     public static long NO_WAIT = -1;
 
+    /**
+     * Framework property setting the log level of the loader: error, warn,
+     * info or debug. Not set by default: every message is passed to the
+     * <code>LogService</code>, which filters them itself, and the console
+     * gets info and above.
+     */
+    public static final String LOG_LEVEL_PROPERTY = "felix.configurationloader.log.level";
+
+    // the LogService levels, the LogService class may not be available
+    private static final int LOG_ERROR = 1;
+    private static final int LOG_WARNING = 2;
+    private static final int LOG_INFO = 3;
+    private static final int LOG_DEBUG = 4;
+
     private final String bundleName;
     private final long bundleId;
     private final BundleContext bundleContext;
     private final ServiceTracker configAdminTracker;
     private final ServiceTracker logTracker;
 
+    /** The messages above this level are dropped before formatting, 0 if not set. */
+    private final int level;
+
+    /** The current LogService, maintained by the tracker. */
+    private volatile Object log;
+
     ServiceMediator(BundleContext context) {
         bundleContext = context;
         bundleName = (bundleContext.getBundle().getSymbolicName() == null)
                 ? bundleContext.getBundle().getLocation()
                 : bundleContext.getBundle().getSymbolicName();
         bundleId = bundleContext.getBundle().getBundleId();
+        level = parseLevel(bundleContext.getProperty(LOG_LEVEL_PROPERTY));
 
         ServiceTracker logTracker = null;
         try {
-            logTracker = new ServiceTracker(bundleContext, LogService.class.getName(), null);
+            logTracker = new ServiceTracker(bundleContext, LogService.class.getName(), new LogCustomizer());
             logTracker.open();
         } catch (Throwable ex) {
             // This means we don't have access to the log service package since it
@@ -56,6 +82,31 @@ class ServiceMediator {
         configAdminTracker.open();
     }
 
+    /** @return The configured level, 0 if not set. */
+    private static int parseLevel(String value) {
+        if (value != null) {
+            value = value.trim().toLowerCase();
+            if ("error".equals(value) || "1".equals(value)) {
+                return LOG_ERROR;
+            } else if ("warn".equals(value) || "warning".equals(value) || "2".equals(value)) {
+                return LOG_WARNING;
+            } else if ("debug".equals(value) || "4".equals(value)) {
+                return LOG_DEBUG;
+            }
+        }
+        return value == null ? 0 : LOG_INFO;
+    }
+
+    /**
+     * Checks whether a message of the given level is logged at all.
+     */
+    private boolean isEnabled(int logLevel) {
+        if (level > 0) {
+            return logLevel <= level;
+        }
+        return log != null || logLevel <= LOG_INFO;
+    }
+
     /**
      * Returns a reference to the <tt>ConfigurationAdmin</tt> (Felix).
      *
@@ -77,15 +128,21 @@ class ServiceMediator {
         return configAdmin;
     }
 
+    /**
+     * Returns the <tt>LogService</tt>.
+     *
+     * @param wait time in milliseconds to wait for the service if it isn't
+     *            available, only waited for if there is none yet.
+     * @return the <tt>LogService</tt> or <code>null</code>.
+     */
     public Object getLogServiceLatch(long wait) {
-        Object log = null;
+        Object log = this.log;
+        if (log != null || wait < 0) {
+            return log;
+        }
         if (logTracker != null) {
             try {
-                if (wait < 0) {
-                    log = logTracker.getService();
-                } else {
-                    log = logTracker.waitForService(wait);
-                }
+                log = logTracker.waitForService(wait);
             } catch (InterruptedException e) {
                 e.printStackTrace(System.err);
             }
@@ -93,49 +150,125 @@ class ServiceMediator {
         return log;
     }
 
+    public boolean isDebugEnabled() {
+        return isEnabled(LOG_DEBUG);
+    }
+
+    public boolean isInfoEnabled() {
+        return isEnabled(LOG_INFO);
+    }
+
+    public boolean isWarnEnabled() {
+        return isEnabled(LOG_WARNING);
+    }
+
     public void info(String msg) {
-        Object log = getLogServiceLatch(NO_WAIT);
-        if (log != null) {
-            ((LogService) log).log(LogService.LOG_INFO, msg);
-        } else {
-            sysout(msg);
+        if (isEnabled(LOG_INFO)) {
+            log(LOG_INFO, msg, null);
         }
     }
 
-    public void error(String msg, Throwable t) {
-        Object log = getLogServiceLatch(NO_WAIT);
-        if (log != null) {
-            ((LogService) log).log(LogService.LOG_ERROR, msg);
-        } else {
-            syserr(msg, t);
+    public void info(String pattern, Object arg) {
+        if (isEnabled(LOG_INFO)) {
+            log(LOG_INFO, format(pattern, new Object[] { arg }), null);
         }
     }
 
-    public void error(String msg) {
-        Object log = getLogServiceLatch(NO_WAIT);
-        if (log != null) {
-            ((LogService) log).log(LogService.LOG_ERROR, msg);
-        } else {
-            syserr(msg, null);
+    public void info(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(LOG_INFO)) {
+            log(LOG_INFO, format(pattern, new Object[] { arg1, arg2 }), null);
+        }
+    }
+
+    public void info(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(LOG_INFO)) {
+            log(LOG_INFO, format(pattern, new Object[] { arg1, arg2, arg3 }), null);
         }
     }
 
+    public void error(String msg, Throwable t) {
+        log(LOG_ERROR, msg, t);
+    }
+
+    public void error(String msg) {
+        log(LOG_ERROR, msg, null);
+    }
+
     public void debug(String msg) {
-        Object log = getLogServiceLatch(NO_WAIT);
-        if (log != null) {
-            ((LogService) log).log(LogService.LOG_DEBUG, msg);
-        } else {
-            sysout(msg);
+        if (isEnabled(LOG_DEBUG)) {
+            log(LOG_DEBUG, msg, null);
+        }
+    }
+
+    public void debug(String pattern, Object arg) {
+        if (isEnabled(LOG_DEBUG)) {
+            log(LOG_DEBUG, format(pattern, new Object[] { arg }), null);
+        }
+    }
+
+    public void debug(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(LOG_DEBUG)) {
+            log(LOG_DEBUG, format(pattern, new Object[] { arg1, arg2 }), null);
+        }
+    }
+
+    public void debug(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(LOG_DEBUG)) {
+            log(LOG_DEBUG, format(pattern, new Object[] { arg1, arg2, arg3 }), null);
         }
     }
 
     public void warn(String msg) {
-        Object log = getLogServiceLatch(NO_WAIT);
+        if (isEnabled(LOG_WARNING)) {
+            log(LOG_WARNING, msg, null);
+        }
+    }
+
+    public void warn(String pattern, Object arg) {
+        if (isEnabled(LOG_WARNING)) {
+            log(LOG_WARNING, format(pattern, new Object[] { arg }), null);
+        }
+    }
+
+    public void warn(String pattern, Object arg1, Object arg2) {
+        if (isEnabled(LOG_WARNING)) {
+            log(LOG_WARNING, format(pattern, new Object[] { arg1, arg2 }), null);
+        }
+    }
+
+    public void warn(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(LOG_WARNING)) {
+            log(LOG_WARNING, format(pattern, new Object[] { arg1, arg2, arg3 }), null);
+        }
+    }
+
+    private void log(int logLevel, String msg, Throwable t) {
+        Object log = this.log;
         if (log != null) {
-            ((LogService) log).log(LogService.LOG_WARNING, msg);
+            ((LogService) log).log(logLevel, msg, t);
+        } else if (logLevel <= LOG_WARNING) {
+            syserr(msg, t);
         } else {
-            syserr(msg, null);
+            sysout(msg);
+        }
+    }
+
+    /**
+     * Replaces the <code>{}</code> placeholders of the pattern with the
+     * arguments in order.
+     */
+    static String format(String pattern, Object[] args) {
+        StringBuilder buf = new StringBuilder(pattern.length() + 16 * args.length);
+        int start = 0;
+        for (int i = 0; i < args.length; i++) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            buf.append(pattern, start, placeholder).append(args[i]);
+            start = placeholder + 2;
         }
+        return buf.append(pattern, start, pattern.length()).toString();
     }
 
     private void sysout(String msg) {
@@ -174,5 +307,44 @@ class ServiceMediator {
         }
         configAdminTracker.close();
     }
-    
+
+    /**
+     * Keeps the current <tt>LogService</tt> at hand, so logging a message
+     * does not go through the tracker.
+     */
+    private final class LogCustomizer implements ServiceTrackerCustomizer {
+
+        /**
+         * The tracked services in the order they were added, guarded by
+         * this. Kept here rather than asking the tracker, which may still
+         * be opening.
+         */
+        private final List services = new ArrayList();
+
+        public Object addingService(ServiceReference reference) {
+            Object service = bundleContext.getService(reference);
+            if (service != null) {
+                synchronized (this) {
+                    services.add(service);
+                    if (log == null) {
+                        log = service;
+                    }
+                }
+            }
+            return service;
+        }
+
+        public void modifiedService(ServiceReference reference, Object service) {
+        }
+
+        public void removedService(ServiceReference reference, Object service) {
+            synchronized (this) {
+                services.remove(service);
+                if (log == service) {
+                    log = services.isEmpty() ? null : services.get(0);
+                }
+            }
+            bundleContext.ungetService(reference);
+        }
+    }
 }
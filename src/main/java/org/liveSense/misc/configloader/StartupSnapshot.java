@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * The state of the previous run of the loader, stored in the data area of
+ * the loader bundle, so the bundles which have not changed since need not be
+ * read again on start.
+ * <p>
+ * For every bundle whose configurations have all been applied the snapshot
+ * records the bundle id, its last modification time and for each
+ * configuration file the entry path, the loader name, the PID, the
+ * fingerprint of the content and the uninstall directive. A bundle is unchanged if it has the same last
+ * modification time, the system properties the macros are resolved against
+ * are the same, and every configuration still carries the fingerprint the
+ * loader applied. Applying such a bundle again would not change anything.
+ * <p>
+ * The file is memory mapped for reading and replaced atomically when
+ * written.
+ */
+class StartupSnapshot {
+
+    private static final String FILE_NAME = "startup-snapshot.bin";
+
+    /** "CLSS" */
+    private static final int MAGIC = 0x434c5353;
+
+    private static final int VERSION = 2;
+
+    private final File file;
+    private final ServiceMediator services;
+
+    /** The hash of the system properties of this run. */
+    private final String systemHash;
+
+    /** The records of the previous run by bundle id, guarded by this. */
+    private Map previous = Collections.EMPTY_MAP;
+
+    /** The records of this run by bundle id, guarded by this. */
+    private final Map current = new HashMap();
+
+    StartupSnapshot(File dataArea, ServiceMediator services, Properties system) {
+        this.file = new File(dataArea, FILE_NAME);
+        this.services = services;
+        this.systemHash = hash(system);
+    }
+
+    /**
+     * Reads the snapshot of the previous run. A missing, outdated or
+     * damaged snapshot is ignored.
+     */
+    public void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                // read into the heap rather than mapped: a mapping is only
+                // released by the garbage collector, and keeps the file from
+                // being replaced on some platforms
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("snapshot too large: " + size);
+                }
+                ByteBuffer buf = ByteBuffer.allocate((int) size);
+                while (buf.hasRemaining() && channel.read(buf) >= 0) {
+                    // read on
+                }
+                buf.flip();
+                Map records = read(buf);
+                synchronized (this) {
+                    previous = records;
+                }
+                services.debug("Read the snapshot of {} bundles from {}", new Integer(records.size()), file);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ioe) {
+            services.warn("Cannot read the startup snapshot {}: {}", file, ioe);
+        } catch (BufferUnderflowException bue) {
+            services.warn("Ignoring the truncated startup snapshot {}", file);
+        }
+    }
+
+    private Map read(ByteBuffer buf) throws IOException {
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            services.debug("Ignoring the startup snapshot {} of another format", file);
+            return Collections.EMPTY_MAP;
+        }
+        if (!systemHash.equals(readString(buf))) {
+            services.debug("The system properties changed, ignoring the startup snapshot");
+            return Collections.EMPTY_MAP;
+        }
+
+        int bundles = buf.getInt();
+        if (bundles < 0 || bundles > buf.remaining()) {
+            throw new IOException("invalid bundle count " + bundles);
+        }
+        Map records = new HashMap(bundles * 2);
+        for (int i = 0; i < bundles; i++) {
+            long bundleId = buf.getLong();
+            long lastModified = buf.getLong();
+            int count = buf.getInt();
+            if (count < 0 || count > buf.remaining()) {
+                throw new IOException("invalid file count " + count);
+            }
+            List files = new ArrayList(count);
+            for (int j = 0; j < count; j++) {
+                files.add(new FileRecord(readString(buf), readString(buf), readString(buf), readString(buf),
+                        buf.get() != 0));
+            }
+            records.put(new Long(bundleId), new BundleRecord(lastModified, files));
+        }
+        if (buf.getInt() != MAGIC) {
+            throw new IOException("missing end marker");
+        }
+        return records;
+    }
+
+    private static String readString(ByteBuffer buf) throws IOException {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Checks whether a bundle is unchanged since the previous run. The
+     * record of an unchanged bundle is kept for the next snapshot.
+     *
+     * @param bundle The bundle.
+     * @param index The index of the current configurations.
+     * @return <code>true</code> if the configurations of the bundle need
+     *         not be loaded again.
+     */
+    public synchronized boolean isUnchanged(Bundle bundle, ConfigurationIndex index) {
+        Long key = new Long(bundle.getBundleId());
+        BundleRecord record = (BundleRecord) previous.get(key);
+        if (record == null || record.lastModified != bundle.getLastModified()) {
+            return false;
+        }
+        for (Iterator fi = record.files.iterator(); fi.hasNext(); ) {
+            FileRecord file = (FileRecord) fi.next();
+            if (!file.fingerprint.equals(index.getChecksum(file.name))) {
+                // deleted, or overwritten by someone else
+                return false;
+            }
+        }
+        current.put(key, record);
+        return true;
+    }
+
+    /**
+     * Records the configurations applied from a bundle.
+     *
+     * @param bundleId The bundle id.
+     * @param lastModified The last modification time of the bundle.
+     * @param files The {@link FileRecord}s of the configurations.
+     */
+    public synchronized void record(long bundleId, long lastModified, List files) {
+        current.put(new Long(bundleId), new BundleRecord(lastModified, files));
+    }
+
+    /**
+     * Returns the configurations of a bundle recorded in this run.
+     *
+     * @param bundleId The bundle id.
+     * @return The {@link FileRecord}s or <code>null</code> if the bundle is
+     *         not recorded.
+     */
+    public synchronized List getFiles(long bundleId) {
+        BundleRecord record = (BundleRecord) current.get(new Long(bundleId));
+        return record == null ? null : record.files;
+    }
+
+    /**
+     * Forgets a bundle, its configurations will be loaded on the next start.
+     *
+     * @param bundleId The bundle id.
+     */
+    public synchronized void remove(long bundleId) {
+        current.remove(new Long(bundleId));
+    }
+
+    /**
+     * Writes the snapshot of this run, replacing the previous one.
+     */
+    public void store() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        int bundles;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, systemHash);
+            synchronized (this) {
+                bundles = current.size();
+                out.writeInt(bundles);
+                for (Iterator ri = current.entrySet().iterator(); ri.hasNext(); ) {
+                    Map.Entry entry = (Map.Entry) ri.next();
+                    BundleRecord record = (BundleRecord) entry.getValue();
+                    out.writeLong(((Long) entry.getKey()).longValue());
+                    out.writeLong(record.lastModified);
+                    out.writeInt(record.files.size());
+                    for (Iterator fi = record.files.iterator(); fi.hasNext(); ) {
+                        FileRecord file = (FileRecord) fi.next();
+                        writeString(out, file.path);
+                        writeString(out, file.name);
+                        writeString(out, file.pid);
+                        writeString(out, file.fingerprint);
+                        out.writeBoolean(file.uninstall);
+                    }
+                }
+            }
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+
+        // renameTo does not replace an existing file on every platform
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        services.debug("Wrote the snapshot of {} bundles to {}", new Integer(bundles), file);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Hashes the system properties, which the macros of the configurations
+     * are resolved against.
+     */
+    private static String hash(Properties system) {
+        Hashtable strings = new Hashtable();
+        for (Enumeration e = system.keys(); e.hasMoreElements(); ) {
+            Object key = e.nextElement();
+            Object value = system.get(key);
+            if (key instanceof String && value instanceof String) {
+                strings.put(key, value);
+            }
+        }
+        return Util.fingerprint(strings);
+    }
+
+    /**
+     * The record of a configuration file.
+     */
+    static final class FileRecord {
+
+        private final String path;
+        private final String name;
+        private final String pid;
+        private final String fingerprint;
+        private final boolean uninstall;
+
+        /**
+         * @param path The entry path of the file.
+         * @param name The loader name of the configuration.
+         * @param pid The PID of the configuration.
+         * @param fingerprint The fingerprint of the applied content.
+         * @param uninstall Whether the configuration is deleted with the
+         *            bundle.
+         */
+        FileRecord(String path, String name, String pid, String fingerprint, boolean uninstall) {
+            this.path = path;
+            this.name = name;
+            this.pid = pid;
+            this.fingerprint = fingerprint;
+            this.uninstall = uninstall;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isUninstall() {
+            return uninstall;
+        }
+    }
+
+    private static final class BundleRecord {
+
+        private final long lastModified;
+        private final List files;
+
+        BundleRecord(long lastModified, List files) {
+            this.lastModified = lastModified;
+            this.files = files;
+        }
+    }
+}
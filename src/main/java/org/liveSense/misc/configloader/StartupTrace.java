@@ -0,0 +1,233 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the spans of the work of the loader - the phases of the start,
+ * the bundles and the files - and writes them in the Chrome trace event
+ * format, which <tt>chrome://tracing</tt> and Perfetto display as a
+ * timeline.
+ * <p>
+ * The spans go to a ring buffer of fixed size allocated up front, so
+ * recording does not allocate; when the buffer is full the oldest spans
+ * are overwritten. Recording a span with the {@link #DISABLED} trace does
+ * nothing at all.
+ */
+class StartupTrace {
+
+    /** The trace of a loader which is not traced. */
+    static final StartupTrace DISABLED = new StartupTrace();
+
+    private final File file;
+    private final int capacity;
+
+    /** The time all timestamps are relative to. */
+    private final long origin;
+
+    /** The number of spans recorded so far, the next slot modulo capacity. */
+    private final AtomicLong next = new AtomicLong();
+
+    private final String[] categories;
+    private final String[] names;
+    private final Object[] details;
+    private final long[] starts;
+    private final long[] durations;
+    private final long[] threadIds;
+    private final String[] threadNames;
+
+    private StartupTrace() {
+        this.file = null;
+        this.capacity = 0;
+        this.origin = 0;
+        this.categories = null;
+        this.names = null;
+        this.details = null;
+        this.starts = null;
+        this.durations = null;
+        this.threadIds = null;
+        this.threadNames = null;
+    }
+
+    /**
+     * @param file The file the trace is written to.
+     * @param capacity The number of spans kept.
+     */
+    StartupTrace(File file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+        this.origin = System.nanoTime();
+        this.categories = new String[capacity];
+        this.names = new String[capacity];
+        this.details = new Object[capacity];
+        this.starts = new long[capacity];
+        this.durations = new long[capacity];
+        this.threadIds = new long[capacity];
+        this.threadNames = new String[capacity];
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Records a span ending now.
+     *
+     * @param category The category of the span: start, bundle, file or cm.
+     * @param name The name of the span.
+     * @param detail What the span worked on, a bundle name or a file URL,
+     *            only converted to a String when the trace is written. May
+     *            be <code>null</code>.
+     * @param start The <code>System.nanoTime()</code> the span started at.
+     */
+    public void end(String category, String name, Object detail, long start) {
+        if (capacity == 0) {
+            return;
+        }
+        long duration = System.nanoTime() - start;
+        int slot = (int) (next.getAndIncrement() % capacity);
+        Thread thread = Thread.currentThread();
+        categories[slot] = category;
+        names[slot] = name;
+        details[slot] = detail;
+        starts[slot] = start;
+        durations[slot] = duration;
+        threadIds[slot] = thread.getId();
+        threadNames[slot] = thread.getName();
+    }
+
+    /**
+     * Writes the spans recorded so far, replacing the previous trace.
+     * Spans recorded while writing may be missing or incomplete.
+     *
+     * @return The number of spans written.
+     */
+    public int write() throws IOException {
+        long recorded = next.get();
+        int count = (int) Math.min(recorded, capacity);
+        long first = recorded - count;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            out.write("{\"traceEvents\":[");
+            Map threads = new HashMap();
+            for (long i = first; i < recorded; i++) {
+                int slot = (int) (i % capacity);
+                if (i > first) {
+                    out.write(",\n");
+                }
+                out.write("{\"cat\":");
+                writeString(out, categories[slot]);
+                out.write(",\"name\":");
+                writeString(out, names[slot]);
+                out.write(",\"ph\":\"X\",\"ts\":");
+                writeMicros(out, starts[slot] - origin);
+                out.write(",\"dur\":");
+                writeMicros(out, durations[slot]);
+                out.write(",\"pid\":1,\"tid\":");
+                out.write(String.valueOf(threadIds[slot]));
+                if (details[slot] != null) {
+                    out.write(",\"args\":{\"detail\":");
+                    writeString(out, String.valueOf(details[slot]));
+                    out.write("}");
+                }
+                out.write("}");
+                threads.put(new Long(threadIds[slot]), threadNames[slot]);
+            }
+            for (Iterator ti = threads.entrySet().iterator(); ti.hasNext(); ) {
+                Map.Entry thread = (Map.Entry) ti.next();
+                out.write(count > 0 ? ",\n" : "\n");
+                count++;
+                out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+                out.write(String.valueOf(thread.getKey()));
+                out.write(",\"args\":{\"name\":");
+                writeString(out, (String) thread.getValue());
+                out.write("}}");
+            }
+            out.write("],\n\"displayTimeUnit\":\"ms\",\"otherData\":{\"recorded\":");
+            out.write(String.valueOf(recorded));
+            out.write(",\"dropped\":");
+            out.write(String.valueOf(first));
+            out.write("}}\n");
+        } finally {
+            out.close();
+        }
+
+        // renameTo does not replace an existing file on every platform
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+        return (int) (recorded - first);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Writes nanoseconds as microseconds with three decimals. */
+    private static void writeMicros(Writer out, long nanos) throws IOException {
+        if (nanos < 0) {
+            out.write('-');
+            nanos = -nanos;
+        }
+        out.write(String.valueOf(nanos / 1000));
+        long fraction = nanos % 1000;
+        out.write('.');
+        out.write((char) ('0' + fraction / 100));
+        out.write((char) ('0' + fraction / 10 % 10));
+        out.write((char) ('0' + fraction % 10));
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        if (value == null) {
+            // a slot being filled while the trace is written
+            value = "";
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                String hex = Integer.toHexString(c);
+                out.write("\\u");
+                for (int j = hex.length(); j < 4; j++) {
+                    out.write('0');
+                }
+                out.write(hex);
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
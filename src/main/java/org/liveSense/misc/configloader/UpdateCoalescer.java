@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses the updates of the same configuration which arrive within a
+ * short window into one, so the services consuming the configuration are
+ * updated once.
+ * <p>
+ * The first update of a configuration opens the window, the updates
+ * arriving before it closes replace the pending one: the last writer wins.
+ * When the window closes the pending update is run on the executor. The
+ * pending updates of a bundle are dropped when it stops; if other bundles
+ * submitted the same configuration, the latest update of those is run
+ * instead.
+ */
+class UpdateCoalescer {
+
+    private final ScheduledExecutorService executor;
+    private final ServiceMediator services;
+    private final long window;
+
+    /** The pending {@link Pending} updates by configuration name, guarded by itself. */
+    private final Map pending = new HashMap();
+
+    private final AtomicLong collapsed = new AtomicLong();
+
+    UpdateCoalescer(ScheduledExecutorService executor, ServiceMediator services, long window) {
+        this.executor = executor;
+        this.services = services;
+        this.window = window;
+    }
+
+    /**
+     * Queues the update of a configuration. An update of the same
+     * configuration still waiting is dropped in favour of this one.
+     *
+     * @param bundleId The bundle the configuration came from.
+     * @param name The loader name of the configuration.
+     * @param update The update.
+     */
+    public void submit(long bundleId, final String name, Runnable update) {
+        synchronized (pending) {
+            Pending existing = (Pending) pending.get(name);
+            if (existing != null) {
+                existing.put(bundleId, update);
+                collapsed.incrementAndGet();
+                services.debug("Collapsed a pending update of {}", name);
+                return;
+            }
+            Pending created = new Pending();
+            created.put(bundleId, update);
+            pending.put(name, created);
+            try {
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        Pending latest;
+                        synchronized (pending) {
+                            latest = (Pending) pending.remove(name);
+                        }
+                        if (latest != null) {
+                            latest.getLatest().run();
+                        }
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                // shutting down, nothing would run it
+                pending.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Runs all the pending updates now, in the calling thread.
+     */
+    public void flush() {
+        List updates;
+        synchronized (pending) {
+            updates = new ArrayList(pending.values());
+            pending.clear();
+        }
+        for (Iterator ui = updates.iterator(); ui.hasNext(); ) {
+            ((Pending) ui.next()).getLatest().run();
+        }
+    }
+
+    /**
+     * Drops the pending updates of a bundle. A configuration also
+     * submitted by other bundles stays pending with the latest of their
+     * updates.
+     *
+     * @param bundleId The bundle id.
+     * @return The number of dropped updates.
+     */
+    public int cancel(long bundleId) {
+        int cancelled = 0;
+        synchronized (pending) {
+            for (Iterator pi = pending.values().iterator(); pi.hasNext(); ) {
+                Pending entry = (Pending) pi.next();
+                if (entry.remove(bundleId)) {
+                    cancelled++;
+                    if (entry.isEmpty()) {
+                        pi.remove();
+                    }
+                }
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return The number of updates which have been replaced by a later
+     *         one.
+     */
+    public long getCollapsed() {
+        return collapsed.get();
+    }
+
+    public int size() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * The pending update of a configuration: the latest update of every
+     * bundle which submitted it, in the order of submission. Guarded by the
+     * map of the pending updates.
+     */
+    private static final class Pending {
+
+        private final LinkedHashMap updates = new LinkedHashMap();
+
+        void put(long bundleId, Runnable update) {
+            Long key = new Long(bundleId);
+            // moved to the end, the last submission wins
+            updates.remove(key);
+            updates.put(key, update);
+        }
+
+        boolean remove(long bundleId) {
+            return updates.remove(new Long(bundleId)) != null;
+        }
+
+        boolean isEmpty() {
+            return updates.isEmpty();
+        }
+
+        Runnable getLatest() {
+            Runnable latest = null;
+            for (Iterator ui = updates.values().iterator(); ui.hasNext(); ) {
+                latest = (Runnable) ui.next();
+            }
+            return latest;
+        }
+    }
+}
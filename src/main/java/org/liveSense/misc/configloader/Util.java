@@ -18,17 +18,44 @@
  */
 package org.liveSense.misc.configloader;
 
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class Util
 {
-    private static final String DELIM_START = "${";
-    private static final String DELIM_STOP = "}";
+    static final String CHECKSUM_SUFFIX = ".checksum";
 
-    private static final String CHECKSUM_SUFFIX = ".checksum";
+    private static final String FINGERPRINT_ALGORITHM = "SHA-1";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Properties maintained by the <code>ConfigurationAdmin</code> itself,
+     * they are not part of the content of a configuration.
+     */
+    private static final Set FINGERPRINT_IGNORED = new HashSet();
+
+    static
+    {
+        FINGERPRINT_IGNORED.add("service.pid");
+        FINGERPRINT_IGNORED.add("service.factoryPid");
+        FINGERPRINT_IGNORED.add("service.bundleLocation");
+    }
 
     /**
      * Perform substitution on a property set
@@ -48,6 +75,59 @@ public class Util
         }
     }
 
+    /**
+     * Resolves the <tt>${&lt;prop-name&gt;}</tt> macros of every String value
+     * of a configuration in a single pass. A macro refers to a system
+     * property or, if there is no such system property, to another property
+     * of the same configuration. The values are resolved against the
+     * properties as they were read, so the order of the keys does not
+     * matter.
+     *
+     * @param properties The configuration properties, resolved in place.
+     * @param system The system properties to resolve against, usually the
+     *        {@link #systemProperties() snapshot} taken for a whole load.
+     * @return The names of the macros which could not be resolved, empty if
+     *         every macro has been resolved.
+     */
+    public static Set resolveMacros(Dictionary properties, Properties system)
+    {
+        Set unresolved = new TreeSet();
+        Map resolved = null;
+        for (Enumeration e = properties.keys(); e.hasMoreElements(); )
+        {
+            Object key = e.nextElement();
+            Object value = properties.get(key);
+            PlaceholderTemplate template = (value instanceof String) ? PlaceholderTemplate.compile((String) value) : null;
+            if (template != null)
+            {
+                if (resolved == null)
+                {
+                    resolved = new HashMap();
+                }
+                resolved.put(key, template.resolve(String.valueOf(key), properties, system, unresolved));
+            }
+        }
+        if (resolved != null)
+        {
+            for (Iterator ri = resolved.entrySet().iterator(); ri.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) ri.next();
+                properties.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * Takes a snapshot of the system properties, so a load resolves all its
+     * macros against the same values without going through the
+     * synchronized <code>System.getProperty</code> for each of them.
+     */
+    public static Properties systemProperties()
+    {
+        return (Properties) System.getProperties().clone();
+    }
+
     /**
      * <p>
      * This method performs property variable substitution on the
@@ -72,84 +152,136 @@ public class Util
     public static String substVars(String val, String currentKey, Map cycleMap, Dictionary configProps)
         throws IllegalArgumentException
     {
-        if (cycleMap == null)
+        // the compiled form of the value is cached, resolving it walks the
+        // literal and variable parts once without copying the value again
+        PlaceholderTemplate template = PlaceholderTemplate.compile(val);
+        if (template == null)
         {
-            cycleMap = new HashMap();
+            return val;
         }
+        return template.resolve(currentKey, cycleMap, configProps);
+    }
 
-        // Put the current key in the cycle map.
-        cycleMap.put(currentKey, currentKey);
-
-        // Assume we have a value that is something like:
-        // "leading ${foo.${bar}} middle ${baz} trailing"
-
-        // Find the first ending '}' variable delimiter, which
-        // will correspond to the first deepest nested variable
-        // placeholder.
-        int stopDelim = val.indexOf(DELIM_STOP);
 
-        // Find the matching starting "${" variable delimiter
-        // by looping until we find a start delimiter that is
-        // greater than the stop delimiter we have found.
-        int startDelim = val.indexOf(DELIM_START);
-        while (stopDelim >= 0)
+    /**
+     * Computes a fingerprint of the content of a configuration. The keys are
+     * visited in sorted order, so two dictionaries holding the same entries
+     * have the same fingerprint whatever their enumeration order is. The
+     * type of every value takes part in the fingerprint, <code>"1"</code>
+     * and <code>Integer(1)</code> differ. Properties set by the
+     * <code>ConfigurationAdmin</code> and by the configuration loader are
+     * ignored.
+     *
+     * @param properties The configuration properties.
+     * @return The fingerprint as a hex string.
+     */
+    public static String fingerprint(Dictionary properties)
+    {
+        List keys = new ArrayList();
+        for (Enumeration e = properties.keys(); e.hasMoreElements(); )
         {
-            int idx = val.indexOf(DELIM_START, startDelim + DELIM_START.length());
-            if ((idx < 0) || (idx > stopDelim))
-            {
-                break;
-            }
-            else if (idx < stopDelim)
+            String key = (String) e.nextElement();
+            if (!FINGERPRINT_IGNORED.contains(key) && !key.startsWith(ConfigurationLoader.CONFIGURATION_PROPERTY_NAME))
             {
-                startDelim = idx;
+                keys.add(key);
             }
         }
+        Collections.sort(keys);
 
-        // If we do not have a start or stop delimiter, then just
-        // return the existing value.
-        if ((startDelim < 0) || (stopDelim < 0))
+        // every part is length prefixed, so no separator can be confused
+        // with the content
+        StringBuilder canonical = new StringBuilder();
+        for (Iterator ki = keys.iterator(); ki.hasNext(); )
         {
-            return val;
+            String key = (String) ki.next();
+            appendCanonical(canonical, key);
+            appendCanonical(canonical, properties.get(key));
         }
 
-        // At this point, we have found a variable placeholder so
-        // we must perform a variable substitution on it.
-        // Using the start and stop delimiter indices, extract
-        // the first, deepest nested variable placeholder.
-        String variable = val.substring(startDelim + DELIM_START.length(), stopDelim);
-
-        // Verify that this is not a recursive variable reference.
-        if (cycleMap.get(variable) != null)
+        try
         {
-            throw new IllegalArgumentException("recursive variable reference: " + variable);
+            return digest(canonical.toString().getBytes("UTF-8"));
         }
-
-        // Get the value of the deepest nested variable placeholder.
-        // Try to configuration properties first.
-        String substValue = (String) ((configProps != null) ? configProps.get(variable) : null);
-        if (substValue == null)
+        catch (UnsupportedEncodingException uee)
         {
-            // Ignore unknown property values.
-            substValue = System.getProperty(variable, "");
+            // UTF-8 is required by the Java platform
+            throw new IllegalStateException(uee.getMessage());
         }
+    }
 
-        // Remove the found variable from the cycle map, since
-        // it may appear more than once in the value and we don't
-        // want such situations to appear as a recursive reference.
-        cycleMap.remove(variable);
-
-        // Append the leading characters, the substituted value of
-        // the variable, and the trailing characters to get the new
-        // value.
-        val = val.substring(0, startDelim) + substValue + val.substring(stopDelim + DELIM_STOP.length(), val.length());
-
-        // Now perform substitution again, since there could still
-        // be substitutions to make.
-        val = substVars(val, currentKey, cycleMap, configProps);
-
-        // Return the value.
-        return val;
+    /**
+     * Computes a hash of the raw content of a configuration file, used to
+     * recognize the same file shipped by different bundles.
+     *
+     * @param content The content of the file.
+     * @return The hash as a hex string.
+     */
+    public static String contentHash(byte[] content)
+    {
+        return digest(content);
     }
 
+    private static String digest(byte[] data)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+            byte[] hash = digest.digest(data);
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++)
+            {
+                hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(hex);
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            // SHA-1 is required by the Java platform
+            throw new IllegalStateException(nsae.getMessage());
+        }
+    }
 
+    private static void appendCanonical(StringBuilder buf, Object value)
+    {
+        if (value == null)
+        {
+            buf.append('N');
+        }
+        else if (value.getClass().isArray())
+        {
+            int length = Array.getLength(value);
+            buf.append('A').append(value.getClass().getComponentType().getName()).append(':').append(length).append(':');
+            for (int i = 0; i < length; i++)
+            {
+                appendCanonical(buf, Array.get(value, i));
+            }
+        }
+        else if (value instanceof Collection)
+        {
+            Collection collection = (Collection) value;
+            buf.append('V').append(collection.size()).append(':');
+            for (Iterator ci = collection.iterator(); ci.hasNext(); )
+            {
+                appendCanonical(buf, ci.next());
+            }
+        }
+        else
+        {
+            String str;
+            if (value instanceof Double)
+            {
+                str = String.valueOf(Double.doubleToLongBits(((Double) value).doubleValue()));
+            }
+            else if (value instanceof Float)
+            {
+                str = String.valueOf(Float.floatToIntBits(((Float) value).floatValue()));
+            }
+            else
+            {
+                str = value.toString();
+            }
+            buf.append(value.getClass().getName()).append(':').append(str.length()).append(':').append(str);
+        }
+    }
 }
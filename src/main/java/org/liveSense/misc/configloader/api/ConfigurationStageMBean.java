@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader.api;
+
+/**
+ * The configurations loaded in lazy mode which wait for their consumer,
+ * registered as an OSGi service under this interface and with the platform
+ * MBean server as
+ * <code>org.liveSense.misc.configloader:type=ConfigurationStage</code>.
+ */
+public interface ConfigurationStageMBean {
+
+    /** @return The PIDs with staged configurations, sorted. */
+    String[] getStagedPids();
+
+    /** @return The number of staged configurations. */
+    int getStagedCount();
+
+    /**
+     * Writes the staged configurations of a PID to the
+     * <code>ConfigurationAdmin</code> now.
+     *
+     * @param pid The PID, or the factory PID of factory configurations.
+     * @return The number of configurations written.
+     */
+    int materialize(String pid);
+
+    /**
+     * Writes all staged configurations to the
+     * <code>ConfigurationAdmin</code> now.
+     *
+     * @return The number of configurations written.
+     */
+    int materializeAll();
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader.api;
+
+/**
+ * The metrics of the configuration loader, registered as an OSGi service
+ * under this interface and with the platform MBean server as
+ * <code>org.liveSense.misc.configloader:type=LoaderMetrics</code>.
+ * <p>
+ * The counters cover the whole life of the loader. The latencies are
+ * reported for the phases {@link #PARSE}, {@link #SUBSTITUTION},
+ * {@link #LOOKUP} and {@link #UPDATE}.
+ */
+public interface LoaderMetricsMBean {
+
+    /** Reading and parsing a configuration file. */
+    String PARSE = "parse";
+
+    /** Resolving the macros of a configuration. */
+    String SUBSTITUTION = "substitution";
+
+    /** Finding or creating the configuration in the ConfigurationAdmin. */
+    String LOOKUP = "lookup";
+
+    /** <code>Configuration.update</code>. */
+    String UPDATE = "update";
+
+    /** @return The number of configuration files parsed. */
+    long getFilesParsed();
+
+    /** @return The number of bytes read from configuration files. */
+    long getBytesRead();
+
+    /** @return The number of configurations written. */
+    long getUpdatesApplied();
+
+    /**
+     * @return The number of configurations not written, because they were
+     *         up to date or had unresolved macros.
+     */
+    long getUpdatesSkipped();
+
+    /** @return The number of configurations which failed to apply. */
+    long getFailures();
+
+    /** @return The number of configurations handed to the retry scheduler. */
+    long getRetries();
+
+    /**
+     * @return The number of updates replaced by a later one of the same
+     *         configuration within the coalescing window.
+     */
+    long getCollapsedUpdates();
+
+    /** @return The latency summary of parsing. */
+    String getParseLatency();
+
+    /** @return The latency summary of the macro substitution. */
+    String getSubstitutionLatency();
+
+    /** @return The latency summary of the ConfigurationAdmin lookups. */
+    String getLookupLatency();
+
+    /** @return The latency summary of the configuration updates. */
+    String getUpdateLatency();
+
+    /**
+     * Returns the latency histogram of a phase. Element <code>i</code> counts
+     * the samples below <code>2^i</code> microseconds not counted before.
+     *
+     * @param phase One of the phase names.
+     * @return The sample counts or <code>null</code> for an unknown phase.
+     */
+    long[] getHistogram(String phase);
+
+    /** @return The counters of every bundle, one line per bundle. */
+    String[] getBundleStatistics();
+
+    /** @return The counters of every configuration file, one line per file. */
+    String[] getFileStatistics();
+
+    /** Clears all counters and histograms. */
+    void reset();
+}
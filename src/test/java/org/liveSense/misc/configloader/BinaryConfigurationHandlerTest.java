@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Vector;
+
+import org.junit.Test;
+
+public class BinaryConfigurationHandlerTest {
+
+    private static final byte[] HEADER = { (byte) 0x89, 'C', 'F', 'G', 1 };
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Hashtable props = createProperties();
+        assertRoundTrip(props, read(write(props, true)));
+        assertRoundTrip(props, read(write(props, false)));
+    }
+
+    @Test
+    public void testKeysInlineByDefault() throws IOException {
+        Hashtable props = createProperties();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryConfigurationHandler.write(out, props);
+        assertArrayEquals(write(props, false), out.toByteArray());
+        assertTrue(out.size() < write(props, true).length);
+    }
+
+    @Test
+    public void testNullElements() throws IOException {
+        Hashtable props = new Hashtable();
+        props.put("strings", new String[] { "a", null, "" });
+        props.put("integers", new Integer[] { null, new Integer(1) });
+        props.put("vector", new Vector(Arrays.asList(new Object[] { null, "x", new Long(2), null })));
+
+        Dictionary read = read(write(props, true));
+        Object[] strings = (Object[]) read.get("strings");
+        assertEquals(String.class, strings.getClass().getComponentType());
+        assertArrayEquals((Object[]) props.get("strings"), strings);
+        Object[] integers = (Object[]) read.get("integers");
+        assertEquals(Integer.class, integers.getClass().getComponentType());
+        assertArrayEquals((Object[]) props.get("integers"), integers);
+        assertEquals(props.get("vector"), read.get("vector"));
+    }
+
+    @Test
+    public void testEmptyArrays() throws IOException {
+        Hashtable props = new Hashtable();
+        props.put("ints", new int[0]);
+        props.put("strings", new String[0]);
+        props.put("vector", new Vector());
+
+        Dictionary read = read(write(props, true));
+        assertEquals(0, ((int[]) read.get("ints")).length);
+        assertEquals(0, ((Object[]) read.get("strings")).length);
+        assertTrue(((List) read.get("vector")).isEmpty());
+    }
+
+    @Test
+    public void testRawFloatingPointBits() throws IOException {
+        float nan = Float.intBitsToFloat(0x7fc00123);
+        double doubleNan = Double.longBitsToDouble(0x7ff8000000000456L);
+        Hashtable props = new Hashtable();
+        props.put("float", new Float(nan));
+        props.put("floats", new float[] { nan, -0.0f });
+        props.put("doubles", new double[] { doubleNan, -0.0 });
+
+        Dictionary read = read(write(props, true));
+        assertEquals(0x7fc00123, Float.floatToRawIntBits(((Float) read.get("float")).floatValue()));
+        float[] floats = (float[]) read.get("floats");
+        assertEquals(0x7fc00123, Float.floatToRawIntBits(floats[0]));
+        assertEquals(0x80000000, Float.floatToRawIntBits(floats[1]));
+        double[] doubles = (double[]) read.get("doubles");
+        assertEquals(0x7ff8000000000456L, Double.doubleToRawLongBits(doubles[0]));
+        assertEquals(0x8000000000000000L, Double.doubleToRawLongBits(doubles[1]));
+    }
+
+    @Test
+    public void testEqualDictionariesWriteEqualBytes() throws IOException {
+        Hashtable first = new Hashtable();
+        Hashtable second = new Hashtable(1);
+        for (int i = 0; i < 50; i++) {
+            first.put("key" + i, new Integer(i));
+            second.put("key" + (49 - i), new Integer(49 - i));
+        }
+        assertArrayEquals(write(first, true), write(second, true));
+        assertArrayEquals(write(first, false), write(second, false));
+    }
+
+    @Test
+    public void testUnsupportedType() {
+        Hashtable props = new Hashtable();
+        props.put("a", new Object());
+        try {
+            write(props, true);
+            fail("Expected an IOException");
+        } catch (IOException ioe) {
+            assertEquals("Unsupported type java.lang.Object", ioe.getMessage());
+        }
+    }
+
+    @Test
+    public void testIsBinary() throws IOException {
+        InputStream in = new BufferedInputStream(new ByteArrayInputStream(write(createProperties(), true)));
+        assertTrue(BinaryConfigurationHandler.isBinary(in));
+        // the stream is reset, it can be read from the start
+        assertRoundTrip(createProperties(), BinaryConfigurationHandler.read(in));
+
+        assertFalse(BinaryConfigurationHandler.isBinary(new ByteArrayInputStream("a=\"x\"".getBytes("UTF-8"))));
+        assertFalse(BinaryConfigurationHandler.isBinary(new ByteArrayInputStream(new byte[] { (byte) 0x89 })));
+        assertFalse(BinaryConfigurationHandler.isBinary(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    public void testConverter() throws IOException {
+        // a collection is typed by its first element in the textual format
+        Hashtable props = createProperties();
+        props.put("vector", new Vector(Arrays.asList(new String[] { "x", "y" })));
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ConfigurationHandler.write(text, props, true);
+
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        ConfigurationConverter.toBinary(new ByteArrayInputStream(text.toByteArray()), binary);
+        assertArrayEquals(write(props, false), binary.toByteArray());
+
+        ByteArrayOutputStream back = new ByteArrayOutputStream();
+        ConfigurationConverter.toText(new ByteArrayInputStream(binary.toByteArray()), back);
+        assertArrayEquals(text.toByteArray(), back.toByteArray());
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] content = write(createProperties(), true);
+        for (int length = 0; length < content.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(content, 0, truncated, 0, length);
+            assertReadFailure(truncated, "Truncated binary configuration");
+        }
+    }
+
+    @Test
+    public void testHugeCounts() throws IOException {
+        // a key table and a configuration claiming Integer.MAX_VALUE entries
+        assertReadFailure(bytes(new int[] { 1, 0xff, 0xff, 0xff, 0xff, 0x07 }), "Truncated binary configuration");
+        assertReadFailure(bytes(new int[] { 0, 0xff, 0xff, 0xff, 0xff, 0x07 }), "Truncated binary configuration");
+
+        // one key "a" with an int[] of 100000000 elements, nothing follows
+        assertReadFailure(bytes(new int[] { 0, 1, 1, 'a', 0x12, 0x80, 0xc2, 0xd7, 0x2f }),
+                "Truncated binary configuration");
+        // a String of 2^28 bytes
+        assertReadFailure(bytes(new int[] { 0, 1, 1, 'a', 0x01, 0x80, 0x80, 0x80, 0x80, 0x01 }),
+                "Truncated binary configuration");
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+        assertReadFailure("a=\"x\"".getBytes("UTF-8"), "Not a binary configuration");
+
+        byte[] version = bytes(new int[] { 0, 0 });
+        version[4] = 2;
+        assertReadFailure(version, "Unsupported binary configuration version 2");
+
+        assertReadFailure(bytes(new int[] { 0, 1, 1, 'a', 0x0f }), "Invalid type 15");
+        assertReadFailure(bytes(new int[] { 0, 1, 1, 'a', 0x11, 0 }), "Invalid primitive array type 1");
+        assertReadFailure(bytes(new int[] { 1, 1, 1, 'a', 1, 5, 0x02, 0, 0, 0, 1 }), "Invalid key index 5");
+        assertReadFailure(bytes(new int[] { 0, 1, 1, 'a', 0x22, 1, 0x01, 0 }),
+                "Element of type 1 in an array of type 2");
+        assertReadFailure(bytes(new int[] { 0, 0xff, 0xff, 0xff, 0xff, 0xff }), "Invalid varint");
+    }
+
+    private static Hashtable createProperties() {
+        Hashtable props = new Hashtable();
+        props.put("string", "q\"\u00e9\ud83d\ude00");
+        props.put("integer", new Integer(Integer.MIN_VALUE));
+        props.put("long", new Long(Long.MAX_VALUE));
+        props.put("float", new Float(1.5f));
+        props.put("double", new Double(-2.25));
+        props.put("byte", new Byte((byte) -3));
+        props.put("short", new Short((short) 4));
+        props.put("character", new Character('\u20ac'));
+        props.put("boolean", Boolean.TRUE);
+        props.put("ints", new int[] { 1, -2, Integer.MAX_VALUE });
+        props.put("longs", new long[] { Long.MIN_VALUE, 0 });
+        props.put("floats", new float[] { 0.5f, Float.POSITIVE_INFINITY });
+        props.put("doubles", new double[] { Math.E, Double.MIN_VALUE });
+        props.put("bytes", new byte[] { -128, 0, 127 });
+        props.put("shorts", new short[] { Short.MIN_VALUE, 5 });
+        props.put("chars", new char[] { 'a', '\uffff' });
+        props.put("booleans", new boolean[] { true, false, true });
+        props.put("longArray", new Long[] { new Long(7), new Long(-8) });
+        props.put("vector", new Vector(Arrays.asList(new Object[] { "x", new Integer(9), Boolean.FALSE })));
+        return props;
+    }
+
+    private static void assertRoundTrip(Dictionary props, Dictionary read) {
+        assertEquals(props.size(), read.size());
+        assertEquals(props.get("string"), read.get("string"));
+        assertEquals(props.get("integer"), read.get("integer"));
+        assertEquals(props.get("long"), read.get("long"));
+        assertEquals(props.get("float"), read.get("float"));
+        assertEquals(props.get("double"), read.get("double"));
+        assertEquals(props.get("byte"), read.get("byte"));
+        assertEquals(props.get("short"), read.get("short"));
+        assertEquals(props.get("character"), read.get("character"));
+        assertEquals(props.get("boolean"), read.get("boolean"));
+        assertArrayEquals((int[]) props.get("ints"), (int[]) read.get("ints"));
+        assertArrayEquals((long[]) props.get("longs"), (long[]) read.get("longs"));
+        assertArrayEquals((float[]) props.get("floats"), (float[]) read.get("floats"), 0f);
+        assertArrayEquals((double[]) props.get("doubles"), (double[]) read.get("doubles"), 0);
+        assertArrayEquals((byte[]) props.get("bytes"), (byte[]) read.get("bytes"));
+        assertArrayEquals((short[]) props.get("shorts"), (short[]) read.get("shorts"));
+        assertArrayEquals((char[]) props.get("chars"), (char[]) read.get("chars"));
+        assertArrayEquals((boolean[]) props.get("booleans"), (boolean[]) read.get("booleans"));
+        assertArrayEquals((Object[]) props.get("longArray"), (Object[]) read.get("longArray"));
+        assertEquals(props.get("vector"), read.get("vector"));
+    }
+
+    private static byte[] write(Dictionary props, boolean keyDictionary) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryConfigurationHandler.write(out, props, keyDictionary);
+        return out.toByteArray();
+    }
+
+    private static Dictionary read(byte[] content) throws IOException {
+        return BinaryConfigurationHandler.read(new ByteArrayInputStream(content));
+    }
+
+    /**
+     * @return The header followed by the given bytes, the first being the
+     *         flags.
+     */
+    private static byte[] bytes(int[] content) {
+        byte[] bytes = new byte[HEADER.length + content.length];
+        System.arraycopy(HEADER, 0, bytes, 0, HEADER.length);
+        for (int i = 0; i < content.length; i++) {
+            bytes[HEADER.length + i] = (byte) content[i];
+        }
+        return bytes;
+    }
+
+    private static void assertReadFailure(byte[] content, String message) {
+        try {
+            read(content);
+            fail("Expected an IOException reading " + content.length + " bytes");
+        } catch (IOException ioe) {
+            assertEquals(message, ioe.getMessage());
+        }
+    }
+}
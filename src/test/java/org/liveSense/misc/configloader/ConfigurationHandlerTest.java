@@ -0,0 +1,305 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.Vector;
+
+import org.junit.Test;
+
+public class ConfigurationHandlerTest {
+
+    @Test
+    public void testReadStrings() throws IOException {
+        Dictionary props = read("a=\"x\"\r\nb.c-d_e=\"y z\"\r\n");
+        assertEquals(2, props.size());
+        assertEquals("x", props.get("a"));
+        assertEquals("y z", props.get("b.c-d_e"));
+    }
+
+    @Test
+    public void testReadEmpty() throws IOException {
+        assertTrue(read("").isEmpty());
+    }
+
+    @Test
+    public void testReadTypedValues() throws IOException {
+        Dictionary props = read("t=T\"s\"\r\n"
+                + "i=I\"-1\"\r\n"
+                + "l=L\"12345678901\"\r\n"
+                + "f=F\"" + Float.floatToRawIntBits(1.5f) + "\"\r\n"
+                + "d=D\"" + Double.doubleToRawLongBits(2.5) + "\"\r\n"
+                + "x=X\"3\"\r\n"
+                + "s=S\"4\"\r\n"
+                + "c=C\"z\"\r\n"
+                + "b=B\"true\"\r\n");
+        assertEquals("s", props.get("t"));
+        assertEquals(new Integer(-1), props.get("i"));
+        assertEquals(new Long(12345678901L), props.get("l"));
+        assertEquals(new Float(1.5f), props.get("f"));
+        assertEquals(new Double(2.5), props.get("d"));
+        assertEquals(new Byte((byte) 3), props.get("x"));
+        assertEquals(new Short((short) 4), props.get("s"));
+        assertEquals(new Character('z'), props.get("c"));
+        assertEquals(Boolean.TRUE, props.get("b"));
+    }
+
+    @Test
+    public void testReadEscapes() throws IOException {
+        Dictionary props = read("a=\"x\\\"y\\\\z\\u0041\\n\"");
+        assertEquals("x\"y\\zA\n", props.get("a"));
+    }
+
+    @Test
+    public void testReadArraysAndCollections() throws IOException {
+        Dictionary props = read("a=I[\"1\",\"2\"]\r\nb=[\"x\",\"y\"]\r\nc=(\"p\",\"q\")\r\n");
+        assertArrayEquals(new Integer[] { new Integer(1), new Integer(2) }, (Object[]) props.get("a"));
+        assertArrayEquals(new String[] { "x", "y" }, (Object[]) props.get("b"));
+        assertTrue(props.get("c") instanceof Collection);
+        assertEquals(Arrays.asList(new String[] { "p", "q" }), props.get("c"));
+    }
+
+    @Test
+    public void testReadPrimitiveArrays() throws IOException {
+        Dictionary props = read("i=i[\"1\",\"-2\"]\r\n"
+                + "l=l[\"12345678901\"]\r\n"
+                + "f=f[\"" + Float.floatToRawIntBits(1.5f) + "\"]\r\n"
+                + "d=d[\"" + Double.doubleToRawLongBits(-2.5) + "\",\"" + Double.doubleToRawLongBits(0.25) + "\"]\r\n"
+                + "x=x[\"127\",\"-128\"]\r\n"
+                + "s=s[\"2\"]\r\n"
+                + "c=c[\"q\",\"r\"]\r\n"
+                + "b=b[\"true\",\"false\"]\r\n");
+        assertArrayEquals(new int[] { 1, -2 }, (int[]) props.get("i"));
+        assertArrayEquals(new long[] { 12345678901L }, (long[]) props.get("l"));
+        assertArrayEquals(new float[] { 1.5f }, (float[]) props.get("f"), 0f);
+        assertArrayEquals(new double[] { -2.5, 0.25 }, (double[]) props.get("d"), 0);
+        assertArrayEquals(new byte[] { 127, -128 }, (byte[]) props.get("x"));
+        assertArrayEquals(new short[] { 2 }, (short[]) props.get("s"));
+        assertArrayEquals(new char[] { 'q', 'r' }, (char[]) props.get("c"));
+        assertArrayEquals(new boolean[] { true, false }, (boolean[]) props.get("b"));
+    }
+
+    @Test
+    public void testReadLargePrimitiveArray() throws IOException {
+        int size = 50000;
+        int[] expected = new int[size];
+        StringBuilder content = new StringBuilder("a=i[");
+        for (int i = 0; i < size; i++) {
+            expected[i] = i * 31 - size;
+            if (i > 0) {
+                content.append(',');
+            }
+            content.append('"').append(expected[i]).append('"');
+        }
+        content.append(']');
+        assertArrayEquals(expected, (int[]) read(content.toString()).get("a"));
+    }
+
+    @Test
+    public void testReadWrapperArrays() throws IOException {
+        Dictionary props = read("l=L[\"1\",\"2\"]\r\nb=B[\"true\"]\r\n");
+        assertArrayEquals(new Long[] { new Long(1), new Long(2) }, (Object[]) props.get("l"));
+        assertArrayEquals(new Boolean[] { Boolean.TRUE }, (Object[]) props.get("b"));
+    }
+
+    @Test
+    public void testReadLineEnds() throws IOException {
+        String[] ends = { "\n", "\r\n", "\r" };
+        for (int i = 0; i < ends.length; i++) {
+            Dictionary props = read("a=\"x\"" + ends[i] + "b=\"y\"" + ends[i]);
+            assertEquals(2, props.size());
+            assertEquals("y", props.get("b"));
+        }
+    }
+
+    @Test
+    public void testReadAcrossBufferBoundaries() throws IOException {
+        // longer than the read window, with a two byte character at every
+        // offset of the UTF-8 decoding
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            value.append(i % 3 == 0 ? '\u00e9' : 'a');
+        }
+        Dictionary props = read("a=\"" + value + "\"\r\nb=\"y\"\r\n");
+        assertEquals(value.toString(), props.get("a"));
+        assertEquals("y", props.get("b"));
+
+        // the buffers are reused, nothing of the previous read leaks
+        props = read("c=\"z\"");
+        assertEquals(1, props.size());
+        assertEquals("z", props.get("c"));
+    }
+
+    @Test
+    public void testMissingEqualsSign() {
+        assertReadFailure("a \"x\"", "Unexpected token 34; expected: 61 (line=0, pos=4)");
+    }
+
+    @Test
+    public void testFailurePositionCountsLines() {
+        assertReadFailure("a=\"x\"\nb=\"y\"\nc \"z\"", "Unexpected token 34; expected: 61 (line=2, pos=4)");
+        assertReadFailure("a=\"x\"\r\nb=\"y\"\r\nc \"z\"", "Unexpected token 34; expected: 61 (line=2, pos=4)");
+        assertReadFailure("a=\"x\"\rb=\"y\"\rc \"z\"", "Unexpected token 34; expected: 61 (line=2, pos=4)");
+    }
+
+    @Test
+    public void testNameStartingOrEndingWithDot() {
+        assertReadFailure(".a=\"x\"", "Name (.a) must not start or end with a dot");
+        assertReadFailure("a.=\"x\"", "Name (a.) must not start or end with a dot");
+    }
+
+    @Test
+    public void testWriteRoundTrip() throws IOException {
+        Hashtable props = new Hashtable();
+        props.put("string", "q\"b\\n\nt\tu\u00e9\u20ac\ud83d\ude00");
+        props.put("integer", new Integer(-7));
+        props.put("long", new Long(Long.MIN_VALUE));
+        props.put("float", new Float(-0.5f));
+        props.put("double", new Double(Double.MAX_VALUE));
+        props.put("byte", new Byte((byte) -1));
+        props.put("short", new Short(Short.MAX_VALUE));
+        props.put("character", new Character('"'));
+        props.put("boolean", Boolean.FALSE);
+        props.put("ints", new int[] { 0, Integer.MIN_VALUE, Integer.MAX_VALUE });
+        props.put("longs", new long[] { -1L, Long.MAX_VALUE });
+        props.put("floats", new float[] { 1.25f, Float.NEGATIVE_INFINITY });
+        props.put("doubles", new double[] { Math.PI, -0.0 });
+        props.put("bytes", new byte[] { 1, -2 });
+        props.put("shorts", new short[] { 3, -4 });
+        props.put("chars", new char[] { 'a', '\\' });
+        props.put("booleans", new boolean[] { false, true });
+        props.put("integers", new Integer[] { new Integer(5), new Integer(6) });
+        props.put("strings", new String[] { "x", "y,\"z\"" });
+        props.put("vector", new Vector(Arrays.asList(new String[] { "p", "q" })));
+
+        Dictionary read = read(write(props, false));
+        assertEquals(props.size(), read.size());
+        assertEquals(props.get("string"), read.get("string"));
+        assertEquals(props.get("integer"), read.get("integer"));
+        assertEquals(props.get("long"), read.get("long"));
+        assertEquals(props.get("float"), read.get("float"));
+        assertEquals(props.get("double"), read.get("double"));
+        assertEquals(props.get("byte"), read.get("byte"));
+        assertEquals(props.get("short"), read.get("short"));
+        assertEquals(props.get("character"), read.get("character"));
+        assertEquals(props.get("boolean"), read.get("boolean"));
+        assertArrayEquals((int[]) props.get("ints"), (int[]) read.get("ints"));
+        assertArrayEquals((long[]) props.get("longs"), (long[]) read.get("longs"));
+        assertArrayEquals((float[]) props.get("floats"), (float[]) read.get("floats"), 0f);
+        assertArrayEquals((double[]) props.get("doubles"), (double[]) read.get("doubles"), 0);
+        assertArrayEquals((byte[]) props.get("bytes"), (byte[]) read.get("bytes"));
+        assertArrayEquals((short[]) props.get("shorts"), (short[]) read.get("shorts"));
+        assertArrayEquals((char[]) props.get("chars"), (char[]) read.get("chars"));
+        assertArrayEquals((boolean[]) props.get("booleans"), (boolean[]) read.get("booleans"));
+        assertArrayEquals((Object[]) props.get("integers"), (Object[]) read.get("integers"));
+        assertArrayEquals((Object[]) props.get("strings"), (Object[]) read.get("strings"));
+        assertEquals(props.get("vector"), read.get("vector"));
+    }
+
+    @Test
+    public void testWriteAcrossBufferBoundaries() throws IOException {
+        // surrogate pairs at both parities of the write buffer boundaries
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            value.append(i % 5 == 0 ? "\ud83d\ude00" : "a\"");
+        }
+        Hashtable props = new Hashtable();
+        props.put("a", value.toString());
+        assertEquals(value.toString(), read(write(props, false)).get("a"));
+    }
+
+    @Test
+    public void testWriteCanonical() throws IOException {
+        Hashtable props = new Hashtable();
+        props.put("b", "y");
+        props.put("a.c", new Integer(1));
+        props.put("a", new int[] { 2, 1 });
+        assertEquals("a=i[\"2\",\"1\"]\r\na.c=I\"1\"\r\nb=\"y\"\r\n", write(props, true));
+    }
+
+    @Test
+    public void testCanonicalOutputIsReproducible() throws IOException {
+        Hashtable first = new Hashtable();
+        Hashtable second = new Hashtable(1);
+        Set firstSet = new LinkedHashSet();
+        Set secondSet = new HashSet();
+        for (int i = 0; i < 100; i++) {
+            first.put("key" + i, "value" + i);
+            second.put("key" + (99 - i), "value" + (99 - i));
+            firstSet.add("element" + i);
+            secondSet.add("element" + (99 - i));
+        }
+        first.put("set", firstSet);
+        second.put("set", secondSet);
+
+        String written = write(first, true);
+        assertEquals(written, write(second, true));
+        assertTrue(written.indexOf("set=(\"element0\",\"element1\",\"element10\",") >= 0);
+    }
+
+    @Test
+    public void testWriteReplacesLoneSurrogates() throws IOException {
+        Hashtable props = new Hashtable();
+        props.put("a", "\ud800z\udc00");
+        assertEquals("a=\"?z?\"\r\n", write(props, true));
+    }
+
+    @Test
+    public void testWriteEncodesUtf8() throws IOException {
+        Hashtable props = new Hashtable();
+        props.put("a", "\u00e9\ud83d\ude00");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConfigurationHandler.write(out, props);
+        assertArrayEquals(new byte[] { 'a', '=', '"', (byte) 0xc3, (byte) 0xa9, (byte) 0xf0, (byte) 0x9f,
+                (byte) 0x98, (byte) 0x80, '"', '\r', '\n' }, out.toByteArray());
+    }
+
+    static Dictionary read(String content) throws IOException {
+        return ConfigurationHandler.read(new ByteArrayInputStream(content.getBytes("UTF-8")));
+    }
+
+    private static String write(Dictionary props, boolean canonical) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ConfigurationHandler.write(out, props, canonical);
+        return out.toString("UTF-8");
+    }
+
+    private static void assertReadFailure(String content, String message) {
+        try {
+            read(content);
+            fail("Expected an IOException reading " + content);
+        } catch (IOException ioe) {
+            assertEquals(message, ioe.getMessage());
+        }
+    }
+}
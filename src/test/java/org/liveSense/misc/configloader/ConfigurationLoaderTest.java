@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Hashtable;
+
+import org.junit.Test;
+
+public class ConfigurationLoaderTest {
+
+    private static final String NAME = "org.example.service";
+
+    @Test
+    public void testNotLoadedByTheLoader() {
+        String fingerprint = Util.fingerprint(content("file"));
+        assertTrue(ConfigurationLoader.needsUpdate(null, NAME, fingerprint));
+        assertTrue(ConfigurationLoader.needsUpdate(content("file"), NAME, fingerprint));
+
+        Hashtable other = loaded(content("file"), "org.example.other");
+        assertTrue(ConfigurationLoader.needsUpdate(other, NAME, fingerprint));
+    }
+
+    @Test
+    public void testUnchanged() {
+        Hashtable stored = loaded(content("file"), NAME);
+        String fingerprint = Util.fingerprint(content("file"));
+        stored.put(ConfigurationLoader.CHECKSUM_PROPERTY_NAME, fingerprint);
+        assertFalse(ConfigurationLoader.needsUpdate(stored, NAME, fingerprint));
+    }
+
+    @Test
+    public void testFileChanged() {
+        Hashtable stored = loaded(content("file"), NAME);
+        stored.put(ConfigurationLoader.CHECKSUM_PROPERTY_NAME, Util.fingerprint(content("file")));
+        assertTrue(ConfigurationLoader.needsUpdate(stored, NAME, Util.fingerprint(content("changed file"))));
+    }
+
+    @Test
+    public void testModifiedByUser() {
+        Hashtable stored = loaded(content("user"), NAME);
+        stored.put(ConfigurationLoader.CHECKSUM_PROPERTY_NAME, Util.fingerprint(content("file")));
+        assertFalse(ConfigurationLoader.needsUpdate(stored, NAME, Util.fingerprint(content("changed file"))));
+    }
+
+    @Test
+    public void testLegacyConfigurationIsStamped() {
+        // loaded before the checksum was recorded, the content is the one
+        // of the file: updating it only adds the checksum
+        Hashtable stored = loaded(content("file"), NAME);
+        assertTrue(ConfigurationLoader.needsUpdate(stored, NAME, Util.fingerprint(content("file"))));
+    }
+
+    @Test
+    public void testLegacyConfigurationModifiedByUser() {
+        // the user modification cannot be told from a change of the file,
+        // it is kept
+        Hashtable stored = loaded(content("user"), NAME);
+        assertFalse(ConfigurationLoader.needsUpdate(stored, NAME, Util.fingerprint(content("file"))));
+    }
+
+    private static Hashtable content(String value) {
+        Hashtable content = new Hashtable();
+        content.put("value", value);
+        content.put("count", new Integer(1));
+        return content;
+    }
+
+    private static Hashtable loaded(Hashtable content, String name) {
+        content.put("service.pid", name);
+        content.put(ConfigurationLoader.CONFIGURATION_PROPERTY_NAME, name);
+        return content;
+    }
+}
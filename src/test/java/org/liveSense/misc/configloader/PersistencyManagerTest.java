@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistencyManagerTest {
+
+    private File root;
+    private File journal;
+    private PersistencyManager manager;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("persistency", null);
+        root.delete();
+        journal = new File(root, "backups.journal");
+        manager = new PersistencyManager(root, null, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        manager.close();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+        root.delete();
+    }
+
+    @Test
+    public void testStoreLoadDelete() throws IOException {
+        manager.store("a", config("a", 1));
+        manager.store("b", config("b", 2));
+        manager.store("b", config("b", 3));
+        manager.delete("a");
+        manager.delete("unknown");
+
+        assertFalse(manager.contains("a"));
+        assertTrue(manager.load("a").isEmpty());
+        assertEquals(config("b", 3), manager.load("b"));
+
+        reopen();
+        assertFalse(manager.contains("a"));
+        assertTrue(manager.contains("b"));
+        assertEquals(config("b", 3), manager.load("b"));
+        assertEquals(1, manager.loadAll().size());
+    }
+
+    @Test
+    public void testEmptyConfigurationIsNotStored() throws IOException {
+        manager.store("a", new Hashtable());
+        manager.store("b", null);
+        assertTrue(manager.loadAll().isEmpty());
+    }
+
+    @Test
+    public void testLoadAllIsSharedUntilChanged() throws IOException {
+        manager.store("a", config("a", 1));
+        Map all = manager.loadAll();
+        assertSame(all, manager.loadAll());
+        assertEquals(config("a", 1), all.get("a"));
+        try {
+            all.put("b", config("b", 2));
+            fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+        try {
+            ((Dictionary) all.get("a")).put("a", "changed");
+            fail("Expected an UnsupportedOperationException");
+        } catch (UnsupportedOperationException uoe) {
+            // expected
+        }
+
+        manager.store("b", config("b", 2));
+        Map changed = manager.loadAll();
+        assertNotSame(all, changed);
+        assertEquals(2, changed.size());
+        assertEquals(1, all.size());
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws IOException {
+        manager.store("a", config("a", 1));
+        manager.close();
+        long length = journal.length();
+
+        append(new byte[] { 0, 0, 1, 0, 42 });
+        assertTrue(manager.contains("a"));
+        assertEquals(length, journal.length());
+
+        // appended after the valid records, not after the garbage
+        manager.store("b", config("b", 2));
+        reopen();
+        assertEquals(config("a", 1), manager.load("a"));
+        assertEquals(config("b", 2), manager.load("b"));
+    }
+
+    @Test
+    public void testTruncatedRecordIsDropped() throws IOException {
+        manager.store("a", config("a", 1));
+        manager.close();
+        long length = journal.length();
+
+        manager.store("b", config("b", 2));
+        manager.close();
+        setLength(journal.length() - 3);
+
+        assertTrue(manager.contains("a"));
+        assertFalse(manager.contains("b"));
+        assertEquals(length, journal.length());
+    }
+
+    @Test
+    public void testChecksumMismatchDropsTheRest() throws IOException {
+        manager.store("a", config("a", 1));
+        manager.close();
+        long length = journal.length();
+
+        manager.store("b", config("b", 2));
+        manager.store("c", config("c", 3));
+        manager.close();
+
+        // a byte of the name in the record of b
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            raf.seek(length + 11);
+            raf.write('x');
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(config("a", 1), manager.load("a"));
+        assertFalse(manager.contains("b"));
+        assertFalse(manager.contains("c"));
+        assertEquals(length, journal.length());
+    }
+
+    @Test
+    public void testNotAJournal() throws IOException {
+        root.mkdirs();
+        FileOutputStream out = new FileOutputStream(journal);
+        try {
+            out.write("a=\"x\"\r\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        try {
+            manager.contains("a");
+            fail("Expected an IOException");
+        } catch (IOException ioe) {
+            assertEquals("Not a journal of the configuration loader: " + journal, ioe.getMessage());
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            value.append('v');
+        }
+        manager.store("kept", config("kept", 0));
+        long maximum = 0;
+        for (int i = 0; i < 200; i++) {
+            Hashtable config = config("name", i);
+            config.put("value", value.toString());
+            manager.store("name", config);
+            maximum = Math.max(maximum, journal.length());
+        }
+        manager.delete("name");
+
+        // rewritten whenever it grew over 64 KB, mostly being garbage
+        assertTrue(maximum <= 64 * 1024 + 2048);
+        assertTrue(journal.length() < 64 * 1024);
+        assertFalse(new File(root, "backups.journal.tmp").exists());
+
+        reopen();
+        assertEquals(1, manager.loadAll().size());
+        assertEquals(config("kept", 0), manager.load("kept"));
+    }
+
+    @Test
+    public void testCompactionKeepsLiveRecords() throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            value.append('v');
+        }
+        for (int i = 0; i < 100; i++) {
+            Hashtable config = config("name" + i, i);
+            config.put("value", value.toString());
+            manager.store("name" + i, config);
+        }
+        long length = journal.length();
+        assertTrue(length > 64 * 1024);
+
+        // live records are never compacted away
+        manager.sync();
+        assertEquals(length, journal.length());
+
+        for (int i = 0; i < 100; i++) {
+            manager.store("name" + i, config("name" + i, -i));
+        }
+        assertTrue(journal.length() < length);
+
+        reopen();
+        assertEquals(100, manager.loadAll().size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(config("name" + i, -i), manager.load("name" + i));
+        }
+    }
+
+    @Test
+    public void testCloseSyncsPendingChanges() throws IOException {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            manager = new PersistencyManager(root, executor, 60 * 60 * 1000);
+            manager.store("a", config("a", 1));
+            manager.store("b", config("b", 2));
+            reopen();
+            assertEquals(config("a", 1), manager.load("a"));
+            assertEquals(config("b", 2), manager.load("b"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void reopen() throws IOException {
+        manager.close();
+        manager = new PersistencyManager(root, null, 0);
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(journal, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void setLength(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Hashtable config(String name, int value) {
+        Hashtable config = new Hashtable();
+        config.put("service.pid", name);
+        config.put("number", new Integer(value));
+        return config;
+    }
+}
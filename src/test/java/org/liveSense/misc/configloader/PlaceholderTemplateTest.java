@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.liveSense.misc.configloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PlaceholderTemplateTest {
+
+    private static final String SYSTEM_ONLY = "configloader.test.system";
+    private static final String SYSTEM_AND_CONFIG = "configloader.test.both";
+
+    private Hashtable props;
+
+    @Before
+    public void setUp() {
+        System.setProperty(SYSTEM_ONLY, "system");
+        System.setProperty(SYSTEM_AND_CONFIG, "system");
+
+        props = new Hashtable();
+        props.put("x", "X");
+        props.put("y", "${x}Y");
+        props.put("n", "x");
+        props.put("m", "n");
+        props.put("xx", "XX");
+        props.put("a", "${b}");
+        props.put("b", "${a}");
+        props.put("self", "${self}");
+        props.put(SYSTEM_AND_CONFIG, "config");
+    }
+
+    @After
+    public void tearDown() {
+        System.getProperties().remove(SYSTEM_ONLY);
+        System.getProperties().remove(SYSTEM_AND_CONFIG);
+    }
+
+    @Test
+    public void testPlainValue() {
+        String value = "no placeholder";
+        assertNull(PlaceholderTemplate.compile(value));
+        assertSame(value, substVars(value));
+    }
+
+    @Test
+    public void testTemplatesAreCached() {
+        String value = "${x}-${y}";
+        assertSame(PlaceholderTemplate.compile(value), PlaceholderTemplate.compile(new String(value)));
+    }
+
+    @Test
+    public void testSubstitution() {
+        assertEquals("X", substVars("${x}"));
+        assertEquals("aXbXYc", substVars("a${x}b${y}c"));
+    }
+
+    @Test
+    public void testNestedPlaceholders() {
+        assertEquals("X", substVars("${${n}}"));
+        assertEquals("XX", substVars("${x${n}}"));
+        assertEquals("<X>", substVars("<${${${m}}}>"));
+    }
+
+    @Test
+    public void testConfigurationBeforeSystemProperties() {
+        assertEquals("system", substVars("${" + SYSTEM_ONLY + "}"));
+        assertEquals("config", substVars("${" + SYSTEM_AND_CONFIG + "}"));
+    }
+
+    @Test
+    public void testUnknownVariable() {
+        assertEquals("[]", substVars("[${configloader.test.unknown}]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCycle() {
+        substVars("${a}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSelfReference() {
+        substVars("${self}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReferenceToCurrentKey() {
+        props.put("key", "${key}");
+        substVars("${key}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReferenceInCycleMap() {
+        Map cycleMap = new HashMap();
+        cycleMap.put("x", "x");
+        Util.substVars("${y}", "key", cycleMap, props);
+    }
+
+    @Test
+    public void testUnbalancedBraces() {
+        assertEquals("}X", substVars("}${x}"));
+        assertEquals("a}bXc}", substVars("a}b${x}c}"));
+        assertEquals("X}", substVars("${x}}"));
+        assertEquals("${x", substVars("${x"));
+        assertEquals("${", substVars("${"));
+        assertEquals("${x", substVars("${${n}"));
+        assertEquals("$X", substVars("$${x}"));
+    }
+
+    @Test
+    public void testResolveAgainstSnapshot() {
+        Properties system = new Properties();
+        system.setProperty(SYSTEM_AND_CONFIG, "snapshot");
+        Set unresolved = new HashSet();
+
+        PlaceholderTemplate template = PlaceholderTemplate.compile("${" + SYSTEM_AND_CONFIG + "}${y}${unknown}${a}");
+        assertEquals("snapshotXY", template.resolve("key", props, system, unresolved));
+        assertTrue(unresolved.contains("unknown"));
+        assertTrue(unresolved.contains("a"));
+    }
+
+    private String substVars(String value) {
+        return Util.substVars(value, "key", null, props);
+    }
+}